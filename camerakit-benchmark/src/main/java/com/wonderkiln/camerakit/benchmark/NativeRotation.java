@@ -0,0 +1,17 @@
+package com.wonderkiln.camerakit.benchmark;
+
+/**
+ * JniYuvOperator's rotation kernels, built for the host from camerakit-core/src/test/cpp.
+ */
+class NativeRotation {
+
+    static {
+        System.loadLibrary("rotationBenchmarkJni");
+    }
+
+    /**
+     * Rotates an NV21 frame clockwise into {@code output} on the calling thread.
+     */
+    static native void rotate(byte[] yuv, int width, int height, int rotation, byte[] output);
+
+}
@@ -0,0 +1,114 @@
+package com.wonderkiln.camerakit.benchmark;
+
+import com.wonderkiln.camerakit.Rotation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times {@link Rotation}, the fallback used when the native library can't be loaded, against
+ * the native rotation on the same frames. Both rotate into a reused output buffer on one thread.
+ * <p/>
+ * Run through {@link #main(String[])}, which prints how much slower the Java rotation is for
+ * each frame size and rotation, and exits with an error if it's more than twice as slow.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RotationBenchmark {
+
+    private static final double MAX_SLOWDOWN = 2.0;
+
+    @Param({"640x480", "1280x720", "1920x1080", "4000x3000"})
+    public String frame;
+
+    @Param({"90", "180", "270"})
+    public int rotation;
+
+    private int width;
+    private int height;
+    private byte[] yuv;
+    private byte[] output;
+
+    @Setup
+    public void setUp() {
+        String[] size = frame.split("x");
+        width = Integer.parseInt(size[0]);
+        height = Integer.parseInt(size[1]);
+
+        yuv = new byte[width * height * 3 / 2];
+        new Random(0).nextBytes(yuv);
+        output = new byte[yuv.length];
+    }
+
+    @Benchmark
+    public byte[] java() {
+        return new Rotation(yuv, width, height, rotation, output).getYuv();
+    }
+
+    @Benchmark
+    public byte[] nativeRotation() {
+        NativeRotation.rotate(yuv, width, height, rotation, output);
+        return output;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RotationBenchmark.class.getName())
+                .jvmArgsAppend("-Djava.library.path=" + System.getProperty("java.library.path"))
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        Map<String, Double> javaScores = new LinkedHashMap<>();
+        Map<String, Double> nativeScores = new LinkedHashMap<>();
+        for (RunResult result : results) {
+            String key = result.getParams().getParam("frame") + " at " + result.getParams().getParam("rotation");
+            double score = result.getPrimaryResult().getScore();
+            if (result.getParams().getBenchmark().endsWith(".java")) {
+                javaScores.put(key, score);
+            } else {
+                nativeScores.put(key, score);
+            }
+        }
+
+        boolean tooSlow = false;
+        System.out.println();
+        System.out.println(String.format("%-22s %10s %10s %8s", "frame", "java ms", "native ms", "ratio"));
+        for (Map.Entry<String, Double> entry : javaScores.entrySet()) {
+            double javaScore = entry.getValue();
+            double nativeScore = nativeScores.get(entry.getKey());
+            double ratio = javaScore / nativeScore;
+            tooSlow |= ratio > MAX_SLOWDOWN;
+            System.out.println(String.format("%-22s %10.3f %10.3f %7.2fx", entry.getKey(), javaScore, nativeScore, ratio));
+        }
+
+        if (tooSlow) {
+            System.err.println("Rotation is more than " + MAX_SLOWDOWN + "x slower than native.");
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,283 @@
+package com.wonderkiln.camerakit.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a {@code <Class>_CameraKitBinder} for every class with {@code @OnCameraKitEvent}
+ * methods, so {@code EventDispatcher} can call them directly instead of through reflection. The
+ * binder checks the event against each method's event type with {@code instanceof}, which covers
+ * subclasses and interfaces, and calls the matching methods in declaration order.
+ * <p/>
+ * Annotated methods may be declared on a superclass too, but can't be private or static.
+ */
+public class CameraKitBinderProcessor extends AbstractProcessor {
+
+    private static final String ANNOTATION = "com.wonderkiln.camerakit.OnCameraKitEvent";
+    private static final String EVENT = "com.wonderkiln.camerakit.CameraKitEvent";
+    private static final String BINDER = "com.wonderkiln.camerakit.CameraKitEventBinder";
+    private static final String BINDER_SUFFIX = "_CameraKitBinder";
+
+    private Elements mElements;
+    private Types mTypes;
+    private Filer mFiler;
+    private Messager mMessager;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        mElements = processingEnv.getElementUtils();
+        mTypes = processingEnv.getTypeUtils();
+        mFiler = processingEnv.getFiler();
+        mMessager = processingEnv.getMessager();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(ANNOTATION);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement annotation = mElements.getTypeElement(ANNOTATION);
+        if (annotation == null) {
+            return false;
+        }
+
+        Set<TypeElement> targets = new LinkedHashSet<>();
+        for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+            if (element.getKind() == ElementKind.METHOD) {
+                targets.add((TypeElement) element.getEnclosingElement());
+            }
+        }
+
+        // Subclasses inherit the annotated methods, but only ones in this compilation can be
+        // found here. Others fall back to reflection at runtime.
+        for (Element element : roundEnv.getRootElements()) {
+            if (element instanceof TypeElement && hasAnnotatedSuperclass((TypeElement) element, targets)) {
+                targets.add((TypeElement) element);
+            }
+        }
+
+        for (TypeElement target : targets) {
+            if (target.getKind() != ElementKind.CLASS || target.getModifiers().contains(Modifier.PRIVATE)) {
+                error(target, "@OnCameraKitEvent methods must be declared in a non-private class.");
+                continue;
+            }
+
+            List<Binding> bindings = collectBindings(target);
+            if (bindings != null && !bindings.isEmpty()) {
+                writeBinder(target, bindings);
+            }
+        }
+
+        // The annotation is ours alone, so it's claimed and no other processor is asked about it.
+        return true;
+    }
+
+    private boolean hasAnnotatedSuperclass(TypeElement type, Set<TypeElement> targets) {
+        TypeMirror superclass = type.getSuperclass();
+        while (superclass != null && superclass.getKind() == TypeKind.DECLARED) {
+            TypeElement element = (TypeElement) mTypes.asElement(superclass);
+            if (targets.contains(element)) {
+                return true;
+            }
+            superclass = element.getSuperclass();
+        }
+        return false;
+    }
+
+    /**
+     * Annotated methods of {@code target} and its superclasses, in declaration order starting
+     * with the topmost superclass. Returns null after reporting an error.
+     */
+    private List<Binding> collectBindings(TypeElement target) {
+        List<TypeElement> hierarchy = new ArrayList<>();
+        TypeElement type = target;
+        while (type != null) {
+            hierarchy.add(0, type);
+            TypeMirror superclass = type.getSuperclass();
+            type = superclass.getKind() == TypeKind.DECLARED
+                    ? (TypeElement) mTypes.asElement(superclass) : null;
+        }
+
+        String targetPackage = getPackage(target).getQualifiedName().toString();
+        Map<String, Binding> bindings = new LinkedHashMap<>();
+        boolean valid = true;
+
+        for (TypeElement declaringType : hierarchy) {
+            for (Element member : declaringType.getEnclosedElements()) {
+                if (member.getKind() != ElementKind.METHOD) continue;
+
+                AnnotationMirror mirror = getAnnotation(member);
+                if (mirror == null) continue;
+
+                ExecutableElement method = (ExecutableElement) member;
+                Set<Modifier> modifiers = method.getModifiers();
+                boolean samePackage = getPackage(declaringType).getQualifiedName().contentEquals(targetPackage);
+                boolean accessible = modifiers.contains(Modifier.PUBLIC)
+                        || (!modifiers.contains(Modifier.PRIVATE) && samePackage);
+
+                if (!accessible || modifiers.contains(Modifier.STATIC)) {
+                    error(method, "@OnCameraKitEvent methods must be non-static and visible to "
+                            + target.getQualifiedName() + ".");
+                    valid = false;
+                    continue;
+                }
+
+                if (method.getParameters().size() != 1) {
+                    error(method, "@OnCameraKitEvent methods must take exactly one event parameter.");
+                    valid = false;
+                    continue;
+                }
+
+                TypeMirror eventType = getEventType(mirror);
+                TypeMirror parameterType = mTypes.erasure(method.getParameters().get(0).asType());
+                if (!mTypes.isAssignable(eventType, parameterType)) {
+                    error(method, "@OnCameraKitEvent(" + eventType + ") can't be passed as " + parameterType + ".");
+                    valid = false;
+                    continue;
+                }
+
+                // An override in a subclass replaces the superclass method in place.
+                String key = method.getSimpleName() + "(" + parameterType + ")";
+                bindings.put(key, new Binding(method.getSimpleName().toString(), eventType, parameterType));
+            }
+        }
+
+        return valid ? new ArrayList<>(bindings.values()) : null;
+    }
+
+    private void writeBinder(TypeElement target, List<Binding> bindings) {
+        String packageName = getPackage(target).getQualifiedName().toString();
+        String binderName = getBinaryName(target, packageName) + BINDER_SUFFIX;
+        String targetName = mTypes.erasure(target.asType()).toString();
+
+        StringBuilder source = new StringBuilder();
+        source.append("// Generated code from CameraKit. Do not modify!\n");
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("@SuppressWarnings({\"rawtypes\", \"unchecked\"})\n");
+        source.append("public final class ").append(binderName)
+                .append(" implements ").append(BINDER).append("<").append(targetName).append("> {\n\n");
+        source.append("    @Override\n");
+        source.append("    public void dispatchEvent(").append(targetName).append(" target, ")
+                .append(EVENT).append(" event) {\n");
+
+        for (Binding binding : bindings) {
+            String argument = binding.parameterType.toString().equals(EVENT)
+                    ? "event" : "(" + binding.parameterType + ") event";
+            String call = "target." + binding.methodName + "(" + argument + ");\n";
+            if (binding.eventType.toString().equals(EVENT)) {
+                source.append("        ").append(call);
+            } else {
+                source.append("        if (event instanceof ").append(binding.eventType).append(") {\n");
+                source.append("            ").append(call);
+                source.append("        }\n");
+            }
+        }
+
+        source.append("    }\n\n");
+        source.append("}\n");
+
+        String qualifiedName = packageName.isEmpty() ? binderName : packageName + "." + binderName;
+        try {
+            JavaFileObject file = mFiler.createSourceFile(qualifiedName, target);
+            Writer writer = file.openWriter();
+            try {
+                writer.write(source.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            error(target, "Unable to write CameraKit binder for " + target.getQualifiedName() + ": " + e.getMessage());
+        }
+    }
+
+    private AnnotationMirror getAnnotation(Element element) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement type = (TypeElement) mirror.getAnnotationType().asElement();
+            if (type.getQualifiedName().contentEquals(ANNOTATION)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private TypeMirror getEventType(AnnotationMirror mirror) {
+        Map<? extends ExecutableElement, ? extends AnnotationValue> values = mElements.getElementValuesWithDefaults(mirror);
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : values.entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals("value")) {
+                return mTypes.erasure((TypeMirror) entry.getValue().getValue());
+            }
+        }
+        return mElements.getTypeElement(EVENT).asType();
+    }
+
+    private PackageElement getPackage(Element element) {
+        return mElements.getPackageOf(element);
+    }
+
+    /**
+     * Name of a possibly nested class within its package, nested classes joined with '$' the way
+     * {@code Class.getName()} has them, so the runtime can find the binder from the class alone.
+     */
+    private static String getBinaryName(TypeElement type, String packageName) {
+        String qualifiedName = type.getQualifiedName().toString();
+        String simpleNames = packageName.isEmpty() ? qualifiedName : qualifiedName.substring(packageName.length() + 1);
+        return simpleNames.replace('.', '$');
+    }
+
+    private void error(Element element, String message) {
+        mMessager.printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private static class Binding {
+
+        final String methodName;
+        final TypeMirror eventType;
+        final TypeMirror parameterType;
+
+        Binding(String methodName, TypeMirror eventType, TypeMirror parameterType) {
+            this.methodName = methodName;
+            this.eventType = eventType;
+            this.parameterType = parameterType;
+        }
+
+    }
+
+}
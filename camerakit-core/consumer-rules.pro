@@ -0,0 +1,15 @@
+# Applied to apps that use camerakit-core.
+
+# Binders generated by camerakit-compiler are only looked up by name, as the bound class's name
+# plus _CameraKitBinder, so both names have to survive. Classes that only inherit their
+# @OnCameraKitEvent methods may still be renamed, and fall back to reflection.
+-keep class **_CameraKitBinder { <init>(); }
+-keepclasseswithmembernames class * {
+    @com.wonderkiln.camerakit.OnCameraKitEvent <methods>;
+}
+
+# Without a generated binder EventDispatcher finds @OnCameraKitEvent methods by reflection.
+-keepattributes *Annotation*
+-keepclassmembers class * {
+    @com.wonderkiln.camerakit.OnCameraKitEvent <methods>;
+}
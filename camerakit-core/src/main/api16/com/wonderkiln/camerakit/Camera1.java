@@ -1,6 +1,9 @@
 package com.wonderkiln.camerakit;
 
+import android.content.Context;
+import android.graphics.ImageFormat;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.YuvImage;
 import android.hardware.Camera;
 import android.media.CamcorderProfile;
@@ -9,9 +12,11 @@ import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
+import android.view.Surface;
 
 import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.text.TextBlock;
@@ -20,11 +25,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Map;
 
 import static com.wonderkiln.camerakit.CameraKit.Constants.FLASH_OFF;
 import static com.wonderkiln.camerakit.CameraKit.Constants.FOCUS_CONTINUOUS;
@@ -41,15 +46,22 @@ public class Camera1 extends CameraImpl {
     private static final int FOCUS_AREA_SIZE_DEFAULT = 300;
     private static final int FOCUS_METERING_AREA_WEIGHT_DEFAULT = 1000;
     private static final int DELAY_MILLIS_BEFORE_RESETTING_FOCUS = 3000;
+    private static final int CONFIGURATION_TIMEOUT_MILLIS = 1000;
 
     private int mCameraId;
     private Camera mCamera;
     private Camera.Parameters mCameraParameters;
+    private CameraParametersTransaction mParametersTransaction;
+    private CameraConfigurationNegotiator mNegotiator;
+    private final CameraCapabilityStore mCapabilityStore;
+    private CameraCapabilityProfile mCapabilities;
     private CameraProperties mCameraProperties;
     private Camera.CameraInfo mCameraInfo;
-    private Size mCaptureSize;
-    private Size mVideoSize;
-    private Size mPreviewSize;
+
+    // Set on the camera thread, read by the resolution getters from any thread.
+    private volatile Size mCaptureSize;
+    private volatile Size mVideoSize;
+    private volatile Size mPreviewSize;
     private MediaRecorder mMediaRecorder;
     private Camera.AutoFocusCallback mAutofocusCallback;
     private boolean capturingImage = false;
@@ -57,7 +69,7 @@ public class Camera1 extends CameraImpl {
     private boolean mShowingPreview;
     private boolean mRecording;
     private int mDisplayOrientation;
-    private int mDeviceOrientation;
+    private volatile int mDeviceOrientation;
 
     @Facing
     private int mFacing;
@@ -75,14 +87,21 @@ public class Camera1 extends CameraImpl {
     private int mVideoQuality;
 
     private Detector<TextBlock> mTextDetector;
+    private final Map<Detector<?>, Float> mDetectors = new LinkedHashMap<>();
+    private float mDetectionDutyCycle = CameraKit.Defaults.DEFAULT_DETECTION_DUTY_CYCLE;
+    private Rect mDetectionRegion;
+    private int mDetectionDownscale = CameraKit.Defaults.DEFAULT_DETECTION_DOWNSCALE;
 
     private int mVideoBitRate;
 
     private boolean mLockVideoAspectRatio;
+    private int mJpegQuality = CameraKit.Defaults.DEFAULT_JPEG_QUALITY;
 
     private Handler mainHandler = new Handler(Looper.getMainLooper());
-    private Handler mHandler = new Handler();
-    private FrameProcessingRunnable mFrameProcessor;
+    // Focus resets and surface changes run on the camera thread, like every other command.
+    private final Handler mHandler = new Handler(CameraCommandQueue.getLooper());
+    private Runnable mResetFocus;
+    private volatile FrameProcessingGraph mFrameProcessor;
 
     private float mZoom = 1.f;
 
@@ -90,32 +109,50 @@ public class Camera1 extends CameraImpl {
 
     private final Object mCameraLock = new Object();
 
-    Camera1(EventDispatcher eventDispatcher, PreviewImpl preview) {
+    Camera1(Context context, EventDispatcher eventDispatcher, PreviewImpl preview) {
         super(eventDispatcher, preview);
+        mCapabilityStore = CameraCapabilityStore.getInstance(context);
 
         preview.setCallback(new PreviewImpl.Callback() {
             @Override
             public void onSurfaceChanged() {
-                if (mCamera != null) {
-                    if (mShowingPreview) {
-                        mCamera.stopPreview();
-                        mShowingPreview = false;
-                    }
-
-                    setDisplayAndDeviceOrientation();
-                    setupPreview();
-
-                    if (!mShowingPreview) {
-                        mCamera.startPreview();
-                        mShowingPreview = true;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPreviewSurfaceChanged();
                     }
-                }
+                });
             }
         });
 
         mCameraInfo = new Camera.CameraInfo();
     }
 
+    /**
+     * Runs on the camera thread after the surface callback has returned, so by now the surface
+     * may already be gone again.
+     */
+    private void onPreviewSurfaceChanged() {
+        synchronized (mCameraLock) {
+            if (mCamera != null) {
+                if (mShowingPreview) {
+                    mCamera.stopPreview();
+                    mShowingPreview = false;
+                }
+
+                setDisplayAndDeviceOrientation();
+                if (setupPreview()) {
+                    mCamera.startPreview();
+                    mShowingPreview = true;
+                }
+
+                if (mNegotiator != null) {
+                    mNegotiator.signal();
+                }
+            }
+        }
+    }
+
     // CameraImpl:
 
     @Override
@@ -124,15 +161,18 @@ public class Camera1 extends CameraImpl {
         openCamera();
         if (mPreview.isReady()) {
             setDisplayAndDeviceOrientation();
-            setupPreview();
-            mCamera.startPreview();
-            mShowingPreview = true;
+            if (setupPreview()) {
+                mCamera.startPreview();
+                mShowingPreview = true;
+            }
         }
     }
 
     @Override
     void stop() {
-        mHandler.removeCallbacksAndMessages(null);
+        if (mResetFocus != null) {
+            mHandler.removeCallbacks(mResetFocus);
+        }
         if (mCamera != null) {
             try {
                 mCamera.stopPreview();
@@ -144,9 +184,6 @@ public class Camera1 extends CameraImpl {
 
         releaseMediaRecorder();
         releaseCamera();
-        if (mFrameProcessor != null) {
-            mFrameProcessor.cleanup();
-        }
     }
 
     void setDisplayAndDeviceOrientation() {
@@ -167,6 +204,9 @@ public class Camera1 extends CameraImpl {
                     // so next time camera starts it will have correct configuration.
                 }
             }
+
+            // The detection region is in view coordinates, so it moves with the preview.
+            updateDetectionCrop();
         }
     }
 
@@ -178,8 +218,8 @@ public class Camera1 extends CameraImpl {
                 return;
             }
 
-            for (int i = 0, count = Camera.getNumberOfCameras(); i < count; i++) {
-                Camera.getCameraInfo(i, mCameraInfo);
+            for (int i = 0, count = mCapabilityStore.getNumberOfCameras(); i < count; i++) {
+                mCapabilityStore.getCameraInfo(i, mCameraInfo);
                 if (mCameraInfo.facing == internalFacing) {
                     mCameraId = i;
                     mFacing = facing;
@@ -198,7 +238,7 @@ public class Camera1 extends CameraImpl {
     void setFlash(@Flash int flash) {
         synchronized (mCameraLock) {
             if (mCameraParameters != null) {
-                List<String> flashes = mCameraParameters.getSupportedFlashModes();
+                List<String> flashes = mCapabilities.getFlashModes();
                 String internalFlash = new ConstantMapper.Flash(flash).map();
                 if (flashes != null && flashes.contains(internalFlash)) {
                     mCameraParameters.setFlashMode(internalFlash);
@@ -211,7 +251,7 @@ public class Camera1 extends CameraImpl {
                     }
                 }
 
-                mCamera.setParameters(mCameraParameters);
+                mParametersTransaction.commit();
             } else {
                 mFlash = flash;
             }
@@ -225,7 +265,7 @@ public class Camera1 extends CameraImpl {
             switch (focus) {
                 case FOCUS_CONTINUOUS:
                     if (mCameraParameters != null) {
-                        final List<String> modes = mCameraParameters.getSupportedFocusModes();
+                        final List<String> modes = mCapabilities.getFocusModes();
                         if (modes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
                             mCameraParameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
                         } else {
@@ -236,7 +276,7 @@ public class Camera1 extends CameraImpl {
 
                 case FOCUS_TAP:
                     if (mCameraParameters != null) {
-                        final List<String> modes = mCameraParameters.getSupportedFocusModes();
+                        final List<String> modes = mCapabilities.getFocusModes();
                         if (modes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
                             mCameraParameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
                         }
@@ -245,7 +285,7 @@ public class Camera1 extends CameraImpl {
 
                 case FOCUS_OFF:
                     if (mCameraParameters != null) {
-                        final List<String> modes = mCameraParameters.getSupportedFocusModes();
+                        final List<String> modes = mCapabilities.getFocusModes();
                         if (modes.contains(Camera.Parameters.FOCUS_MODE_FIXED)) {
                             mCameraParameters.setFocusMode(Camera.Parameters.FOCUS_MODE_FIXED);
                         } else if (modes.contains(Camera.Parameters.FOCUS_MODE_INFINITY)) {
@@ -256,6 +296,10 @@ public class Camera1 extends CameraImpl {
                     }
                     break;
             }
+
+            if (mParametersTransaction != null) {
+                mParametersTransaction.commit();
+            }
         }
     }
 
@@ -266,7 +310,84 @@ public class Camera1 extends CameraImpl {
 
     @Override
     void setTextDetector(Detector<TextBlock> detector) {
-        this.mTextDetector = detector;
+        synchronized (mCameraLock) {
+            Detector<TextBlock> previous = mTextDetector;
+            if (detector == previous) {
+                return;
+            }
+
+            if (previous != null) {
+                mDetectors.remove(previous);
+            }
+
+            this.mTextDetector = detector;
+            if (detector != null) {
+                mDetectors.put(detector, 0f);
+            }
+
+            restartFrameProcessing();
+
+            // Only once the graph that ran it has stopped.
+            if (previous != null) {
+                previous.release();
+            }
+        }
+    }
+
+    @Override
+    void addDetector(Detector<?> detector, float targetFps) {
+        synchronized (mCameraLock) {
+            mDetectors.put(detector, targetFps);
+            restartFrameProcessing();
+        }
+    }
+
+    @Override
+    void setDetectionDutyCycle(float dutyCycle) {
+        synchronized (mCameraLock) {
+            mDetectionDutyCycle = dutyCycle;
+            if (mFrameProcessor != null) {
+                mFrameProcessor.setDutyCycle(dutyCycle);
+            }
+        }
+    }
+
+    @Override
+    void setDetectionRegion(@Nullable Rect region) {
+        synchronized (mCameraLock) {
+            mDetectionRegion = region != null ? new Rect(region) : null;
+            updateDetectionCrop();
+        }
+    }
+
+    @Override
+    void setDetectionDownscale(int downscale) {
+        synchronized (mCameraLock) {
+            mDetectionDownscale = Math.max(downscale, 1);
+            updateDetectionCrop();
+        }
+    }
+
+    @Override
+    List<FrameProcessingRunnable> getFrameProcessors() {
+        // Read without the lock so the UI can poll stats while the camera thread is busy.
+        FrameProcessingGraph frameProcessor = mFrameProcessor;
+        if (frameProcessor == null) {
+            return Collections.emptyList();
+        }
+        return frameProcessor.getProcessors();
+    }
+
+    @Override
+    void removeDetector(Detector<?> detector) {
+        synchronized (mCameraLock) {
+            if (mDetectors.remove(detector) != null) {
+                if (detector == mTextDetector) {
+                    mTextDetector = null;
+                }
+                restartFrameProcessing();
+            }
+        }
     }
 
     @Override
@@ -289,12 +410,13 @@ public class Camera1 extends CameraImpl {
                 mZoom= zoomFactor;
             }
 
-            if (mCameraParameters != null && mCameraParameters.isZoomSupported()) {
+            if (mCameraParameters != null && mCapabilities.isZoomSupported()) {
                 int zoomPercent = (int) (mZoom * 100);
                 mCameraParameters.setZoom(getZoomForPercent(zoomPercent));
-                mCamera.setParameters(mCameraParameters);
+                mParametersTransaction.commit();
 
-                float maxZoom = mCameraParameters.getZoomRatios().get(mCameraParameters.getZoomRatios().size() - 1) / 100f;
+                List<Integer> zoomRatios = mCapabilities.getZoomRatios();
+                float maxZoom = zoomRatios.get(zoomRatios.size() - 1) / 100f;
                 if (mZoom > maxZoom) mZoom = maxZoom;
 
             }
@@ -309,7 +431,7 @@ public class Camera1 extends CameraImpl {
     }
 
     private int getZoomForPercent(int zoomPercent) {
-        List<Integer> zoomRatios = mCameraParameters.getZoomRatios();
+        List<Integer> zoomRatios = mCapabilities.getZoomRatios();
         int lowerIndex = -1;
         int upperIndex = -1;
 
@@ -341,11 +463,10 @@ public class Camera1 extends CameraImpl {
     void setFocusArea(float x, float y) {
         synchronized (mCameraLock) {
             if (mCamera != null) {
-                Camera.Parameters parameters = getCameraParameters();
-                if (parameters == null) return;
-
+                Camera.Parameters parameters = mCameraParameters;
                 String focusMode = parameters.getFocusMode();
                 Rect rect = calculateFocusArea(x, y);
+                boolean canAutoFocus = mCapabilities.getFocusModes().contains(Camera.Parameters.FOCUS_MODE_AUTO);
 
                 List<Camera.Area> meteringAreas = new ArrayList<>();
                 meteringAreas.add(new Camera.Area(rect, getFocusMeteringAreaWeight()));
@@ -355,15 +476,15 @@ public class Camera1 extends CameraImpl {
                                 focusMode.equals(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE) ||
                                 focusMode.equals(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO))
                         ) {
+                    if (!canAutoFocus) {
+                        return; //cannot autoFocus
+                    }
                     parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
                     parameters.setFocusAreas(meteringAreas);
                     if (parameters.getMaxNumMeteringAreas() > 0) {
                         parameters.setMeteringAreas(meteringAreas);
                     }
-                    if (!parameters.getSupportedFocusModes().contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
-                        return; //cannot autoFocus
-                    }
-                    mCamera.setParameters(parameters);
+                    mParametersTransaction.commit();
                     mCamera.autoFocus(new Camera.AutoFocusCallback() {
                         @Override
                         public void onAutoFocus(boolean success, Camera camera) {
@@ -371,14 +492,14 @@ public class Camera1 extends CameraImpl {
                         }
                     });
                 } else if (parameters.getMaxNumMeteringAreas() > 0) {
-                    if (!parameters.getSupportedFocusModes().contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
+                    if (!canAutoFocus) {
                         return; //cannot autoFocus
                     }
                     parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
                     parameters.setFocusAreas(meteringAreas);
                     parameters.setMeteringAreas(meteringAreas);
 
-                    mCamera.setParameters(parameters);
+                    mParametersTransaction.commit();
                     mCamera.autoFocus(new Camera.AutoFocusCallback() {
                         @Override
                         public void onAutoFocus(boolean success, Camera camera) {
@@ -404,6 +525,11 @@ public class Camera1 extends CameraImpl {
         this.mLockVideoAspectRatio = lockVideoAspectRatio;
     }
 
+    @Override
+    void setJpegQuality(int jpegQuality) {
+        this.mJpegQuality = jpegQuality;
+    }
+
     @Override
     void captureImage(final ImageCapturedCallback callback) {
         switch (mMethod) {
@@ -418,7 +544,7 @@ public class Camera1 extends CameraImpl {
                         // Set the captureRotation right before taking a picture so it's accurate
                         int captureRotation = calculateCaptureRotation();
                         mCameraParameters.setRotation(captureRotation);
-                        mCamera.setParameters(mCameraParameters);
+                        mParametersTransaction.commit();
 
                         mCamera.takePicture(null, null, null,
                                 new Camera.PictureCallback() {
@@ -432,8 +558,7 @@ public class Camera1 extends CameraImpl {
                                         synchronized (mCameraLock) {
                                             if (isCameraOpened()) {
                                                 try {
-                                                    stop();
-                                                    start();
+                                                    resumePreviewAfterCapture();
                                                 } catch (Exception e) {
                                                     notifyErrorListener(e);
                                                 }
@@ -452,26 +577,7 @@ public class Camera1 extends CameraImpl {
                     mCamera.setOneShotPreviewCallback(new Camera.PreviewCallback() {
                         @Override
                         public void onPreviewFrame(byte[] data, Camera camera) {
-                            Camera.Parameters parameters = camera.getParameters();
-                            int width = parameters.getPreviewSize().width;
-                            int height = parameters.getPreviewSize().height;
-                            int rotation = calculateCaptureRotation();
-
-                            YuvOperator yuvOperator = new YuvOperator(data, width, height);
-                            yuvOperator.rotate(rotation);
-                            data = yuvOperator.getYuvData();
-
-                            int yuvOutputWidth = width;
-                            int yuvOutputHeight = height;
-                            if (rotation == 90 || rotation == 270) {
-                                yuvOutputWidth = height;
-                                yuvOutputHeight = width;
-                            }
-
-                            YuvImage yuvImage = new YuvImage(data, parameters.getPreviewFormat(), yuvOutputWidth, yuvOutputHeight, null);
-                            ByteArrayOutputStream out = new ByteArrayOutputStream();
-                            yuvImage.compressToJpeg(new Rect(0, 0, yuvImage.getWidth(), yuvImage.getHeight()), 100, out);
-                            callback.imageCaptured(out.toByteArray());
+                            callback.imageCaptured(compressPreviewFrame(data));
                         }
                     });
                     break;
@@ -479,6 +585,167 @@ public class Camera1 extends CameraImpl {
         }
     }
 
+    @Override
+    void captureBurst(int count, final BurstCapturedCallback callback) {
+        if (count <= 0) {
+            return;
+        }
+
+        switch (mMethod) {
+            case METHOD_STANDARD:
+                synchronized (mCameraLock) {
+                    if (!capturingImage && mCamera != null) {
+                        capturingImage = true;
+
+                        // Device orientation is sampled once for the whole burst
+                        int captureRotation = calculateCaptureRotation();
+                        mCameraParameters.setRotation(captureRotation);
+                        mParametersTransaction.commit();
+
+                        takeBurstPicture(0, count, callback);
+                    } else {
+                        Log.w(TAG, "Unable, waiting for picture to be taken");
+                    }
+                    break;
+                }
+
+            case METHOD_STILL:
+                synchronized (mCameraLock) {
+                    if (mCamera != null) {
+                        captureStillBurst(0, count, callback);
+                    }
+                    break;
+                }
+        }
+    }
+
+    private void takeBurstPicture(final int index, final int count, final BurstCapturedCallback callback) {
+        final long[] shutterTime = new long[1];
+        mShowingPreview = false;
+        mCamera.takePicture(
+                new Camera.ShutterCallback() {
+                    @Override
+                    public void onShutter() {
+                        shutterTime[0] = SystemClock.elapsedRealtime();
+                    }
+                },
+                null,
+                null,
+                new Camera.PictureCallback() {
+                    @Override
+                    public void onPictureTaken(byte[] data, Camera camera) {
+                        long timestamp = shutterTime[0] != 0 ? shutterTime[0] : SystemClock.elapsedRealtime();
+
+                        // Post-processing is queued by the callback, so it overlaps with the
+                        // exposure of the next shot.
+                        callback.imageCaptured(data, index, timestamp);
+
+                        synchronized (mCameraLock) {
+                            if (isCameraOpened()) {
+                                try {
+                                    boolean resumed = resumePreviewAfterCapture();
+
+                                    if (index + 1 < count && isCameraOpened()) {
+                                        if (resumed) {
+                                            takeBurstPicture(index + 1, count, callback);
+                                            return;
+                                        }
+
+                                        // Reopening after every shot would close and open the
+                                        // camera, and rebuild its frame processors, once per
+                                        // picture. It's reopened once and the rest of the burst
+                                        // comes from preview frames instead.
+                                        capturingImage = false;
+                                        captureStillBurst(index + 1, count, callback);
+                                        return;
+                                    }
+                                } catch (Exception e) {
+                                    notifyErrorListener(e);
+                                }
+                            }
+
+                            capturingImage = false;
+                        }
+                    }
+                });
+    }
+
+    /**
+     * takePicture() leaves the preview stopped. Most cameras only need it started again, which
+     * keeps the viewfinder live; the first time one refuses we fall back to reopening it, which
+     * closes and opens it as far as listeners can tell, and remember that in the
+     * {@link CameraCapabilityStore} so it's reopened straight away from then on.
+     *
+     * @return false if the camera was reopened
+     */
+    private boolean resumePreviewAfterCapture() {
+        if (!mCapabilityStore.needsReopenAfterCapture(mCameraId)) {
+            try {
+                mCamera.startPreview();
+                mShowingPreview = true;
+                return true;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Unable to resume preview after capture, reopening camera", e);
+                mCapabilityStore.setNeedsReopenAfterCapture(mCameraId);
+            }
+        }
+
+        stop();
+        start();
+        return false;
+    }
+
+    private void captureStillBurst(final int index, final int count, final BurstCapturedCallback callback) {
+        mCamera.setOneShotPreviewCallback(new Camera.PreviewCallback() {
+            @Override
+            public void onPreviewFrame(byte[] data, Camera camera) {
+                long timestamp = SystemClock.elapsedRealtime();
+                callback.imageCaptured(compressPreviewFrame(data), index, timestamp);
+
+                synchronized (mCameraLock) {
+                    if (index + 1 < count && isCameraOpened()) {
+                        captureStillBurst(index + 1, count, callback);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Called for every frame of a still burst, so the preview size and format come from the
+     * parameters the camera last accepted rather than from another {@link Camera#getParameters()}.
+     */
+    private byte[] compressPreviewFrame(byte[] data) {
+        Camera.Size previewSize = mCameraParameters.getPreviewSize();
+        int previewFormat = mCameraParameters.getPreviewFormat();
+        int width = previewSize.width;
+        int height = previewSize.height;
+        int rotation = calculateCaptureRotation();
+
+        if (previewFormat == ImageFormat.NV21) {
+            byte[] jpeg = YuvOperator.compressToJpeg(data, width, height, rotation, mJpegQuality);
+            if (jpeg != null) {
+                return jpeg;
+            }
+        }
+
+        YuvOperator yuvOperator = new YuvOperator(data, width, height);
+        yuvOperator.rotate(rotation);
+        data = yuvOperator.getYuvData();
+
+        int yuvOutputWidth = width;
+        int yuvOutputHeight = height;
+        if (rotation == 90 || rotation == 270) {
+            yuvOutputWidth = height;
+            yuvOutputHeight = width;
+        }
+
+        YuvImage yuvImage = new YuvImage(data, previewFormat, yuvOutputWidth, yuvOutputHeight, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        yuvImage.compressToJpeg(new Rect(0, 0, yuvImage.getWidth(), yuvImage.getHeight()), mJpegQuality, out);
+        return out.toByteArray();
+    }
+
     @Override
     void captureVideo(File videoFile, VideoCapturedCallback callback) {
         synchronized (mCameraLock) {
@@ -525,116 +792,23 @@ public class Camera1 extends CameraImpl {
 
     @Override
     Size getCaptureResolution() {
-        if (mCaptureSize == null && mCameraParameters != null) {
-            TreeSet<Size> sizes = new TreeSet<>();
-            for (Camera.Size size : mCameraParameters.getSupportedPictureSizes()) {
-                sizes.add(new Size(size.width, size.height));
-            }
-
-            TreeSet<AspectRatio> aspectRatios = findCommonAspectRatios(
-                    mCameraParameters.getSupportedPreviewSizes(),
-                    mCameraParameters.getSupportedPictureSizes()
-            );
-            AspectRatio targetRatio = aspectRatios.size() > 0 ? aspectRatios.last() : null;
-
-            Iterator<Size> descendingSizes = sizes.descendingIterator();
-            Size size;
-            while (descendingSizes.hasNext() && mCaptureSize == null) {
-                size = descendingSizes.next();
-                if (targetRatio == null || targetRatio.matches(size)) {
-                    mCaptureSize = size;
-                    break;
-                }
-            }
-        }
-
         return mCaptureSize;
     }
 
     @Override
     Size getVideoResolution() {
-        if (mVideoSize == null && mCameraParameters != null) {
-            if (mCameraParameters.getSupportedVideoSizes() == null) {
-                mVideoSize = getCaptureResolution();
-                return mVideoSize;
-            }
-
-            TreeSet<Size> sizes = new TreeSet<>();
-            for (Camera.Size size : mCameraParameters.getSupportedVideoSizes()) {
-                sizes.add(new Size(size.width, size.height));
-            }
-
-            TreeSet<AspectRatio> aspectRatios = findCommonAspectRatios(
-                    mCameraParameters.getSupportedPreviewSizes(),
-                    mCameraParameters.getSupportedVideoSizes()
-            );
-            AspectRatio targetRatio = aspectRatios.size() > 0 ? aspectRatios.last() : null;
-
-            Iterator<Size> descendingSizes = sizes.descendingIterator();
-            Size size;
-            while (descendingSizes.hasNext() && mVideoSize == null) {
-                size = descendingSizes.next();
-                if (targetRatio == null || targetRatio.matches(size)) {
-                    mVideoSize = size;
-                    break;
-                }
-            }
-        }
-
         return mVideoSize;
     }
 
     @Override
     Size getPreviewResolution() {
-        if (mPreviewSize == null && mCameraParameters != null) {
-            TreeSet<Size> sizes = new TreeSet<>();
-            for (Camera.Size size : mCameraParameters.getSupportedPreviewSizes()) {
-                sizes.add(new Size(size.width, size.height));
-            }
-
-            TreeSet<AspectRatio> aspectRatios = findCommonAspectRatios(
-                    mCameraParameters.getSupportedPreviewSizes(),
-                    mCameraParameters.getSupportedPictureSizes()
-            );
-
-            AspectRatio targetRatio = null;
-
-            if (mLockVideoAspectRatio) {
-                TreeSet<AspectRatio> videoAspectRatios = findCommonAspectRatios(
-                        mCameraParameters.getSupportedPreviewSizes(),
-                        mCameraParameters.getSupportedPictureSizes()
-                );
-
-                Iterator<AspectRatio> descendingIterator = aspectRatios.descendingIterator();
-                while (targetRatio == null && descendingIterator.hasNext()) {
-                    AspectRatio ratio = descendingIterator.next();
-                    if (videoAspectRatios.contains(ratio)) {
-                        targetRatio = ratio;
-                    }
-                }
-            }
-
-            if (targetRatio == null) {
-                targetRatio = aspectRatios.size() > 0 ? aspectRatios.last() : null;
-            }
-
-            Iterator<Size> descendingSizes = sizes.descendingIterator();
-            Size size;
-            while (descendingSizes.hasNext() && mPreviewSize == null) {
-                size = descendingSizes.next();
-                if (targetRatio == null || targetRatio.matches(size)) {
-                    mPreviewSize = size;
-                    break;
-                }
-            }
-        }
-
+        Size previewSize = mPreviewSize;
         boolean invertPreviewSizes = (mCameraInfo.orientation + mDeviceOrientation) % 180 == 90;
-        if (mPreviewSize != null && invertPreviewSizes) {
-            return new Size(mPreviewSize.getHeight(), mPreviewSize.getWidth());
+        if (previewSize != null && invertPreviewSizes) {
+            return new Size(previewSize.getHeight(), previewSize.getWidth());
         }
 
-        return mPreviewSize;
+        return previewSize;
     }
 
     @Override
@@ -645,8 +819,8 @@ public class Camera1 extends CameraImpl {
     @Override
     boolean frontCameraOnly() {
         Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
-        Camera.getCameraInfo(0, cameraInfo);
-        boolean isFrontCameraOnly = (Camera.getNumberOfCameras() == 1 && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT);
+        mCapabilityStore.getCameraInfo(0, cameraInfo);
+        boolean isFrontCameraOnly = (mCapabilityStore.getNumberOfCameras() == 1 && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT);
         return isFrontCameraOnly;
     }
 
@@ -665,10 +839,15 @@ public class Camera1 extends CameraImpl {
             }
 
             mCamera = Camera.open(mCameraId);
-            mCameraParameters = mCamera.getParameters();
+            readCameraParameters();
 
-            collectCameraProperties();
-            adjustCameraParameters();
+            Looper looper = Looper.myLooper();
+            mNegotiator = new CameraConfigurationNegotiator(
+                    new Handler(looper != null ? looper : Looper.getMainLooper()),
+                    CONFIGURATION_TIMEOUT_MILLIS,
+                    mNegotiatorCallback
+            );
+            mNegotiator.begin(adjustCameraParameters());
 
             if (Build.VERSION.SDK_INT >= 16) {
                 mCamera.setAutoFocusMoveCallback(new Camera.AutoFocusMoveCallback() {
@@ -683,20 +862,145 @@ public class Camera1 extends CameraImpl {
 
             mEventDispatcher.dispatch(new CameraKitEvent(CameraKitEvent.TYPE_CAMERA_OPEN));
 
-            if (mTextDetector != null) {
-                mFrameProcessor = new FrameProcessingRunnable(mTextDetector, mPreviewSize, mCamera);
+            restartFrameProcessing();
+        }
+    }
+
+    /**
+     * Rebuilds the detector graph for the current camera, or tears it down if there are no
+     * detectors left. Detectors themselves are kept, they're reused by the next camera session.
+     */
+    private void restartFrameProcessing() {
+        synchronized (mCameraLock) {
+            stopFrameProcessing();
+
+            if (mCamera != null && mPreviewSize != null && !mDetectors.isEmpty()) {
+                mFrameProcessor = new FrameProcessingGraph(mDetectors, mDetectionDutyCycle, mPreviewSize, mCamera);
+                updateDetectionCrop();
                 mFrameProcessor.start();
             }
         }
     }
 
-    private void setupPreview() {
+    private void updateDetectionCrop() {
+        synchronized (mCameraLock) {
+            if (mFrameProcessor != null) {
+                mFrameProcessor.setCropRegion(calculateDetectionCrop(), mDetectionDownscale);
+            }
+        }
+    }
+
+    /**
+     * Maps the detection region from view coordinates onto the preview frame. The view shows the
+     * frame mirrored for the front camera, rotated by {@link #calculatePreviewRotation()}, then
+     * scaled to fill the view and centered (see {@link SurfaceViewContainer}), so this undoes
+     * those steps in reverse. The result is aligned so it crops and downscales to a valid NV21
+     * frame. Returns null to hand detectors the whole frame.
+     */
+    @Nullable
+    private Rect calculateDetectionCrop() {
+        if (mPreviewSize == null || (mDetectionRegion == null && mDetectionDownscale == 1)) {
+            return null;
+        }
+
+        int frameWidth = mPreviewSize.getWidth();
+        int frameHeight = mPreviewSize.getHeight();
+        int rotation = calculatePreviewRotation();
+        boolean swapped = rotation == 90 || rotation == 270;
+        float displayedWidth = swapped ? frameHeight : frameWidth;
+        float displayedHeight = swapped ? frameWidth : frameHeight;
+
+        // Normalized to the displayed preview, which can overflow the view on one side.
+        RectF region = new RectF(0, 0, 1, 1);
+        int viewWidth = mPreview.getWidth();
+        int viewHeight = mPreview.getHeight();
+        if (mDetectionRegion != null && viewWidth > 0 && viewHeight > 0) {
+            float scale = Math.max(viewWidth / displayedWidth, viewHeight / displayedHeight);
+            float scaledWidth = displayedWidth * scale;
+            float scaledHeight = displayedHeight * scale;
+            float offsetX = (viewWidth - scaledWidth) / 2;
+            float offsetY = (viewHeight - scaledHeight) / 2;
+
+            RectF viewRegion = new RectF(
+                    (mDetectionRegion.left - offsetX) / scaledWidth,
+                    (mDetectionRegion.top - offsetY) / scaledHeight,
+                    (mDetectionRegion.right - offsetX) / scaledWidth,
+                    (mDetectionRegion.bottom - offsetY) / scaledHeight);
+            if (viewRegion.intersect(0, 0, 1, 1)) {
+                region = viewRegion;
+            }
+        }
+
+        RectF frameRegion;
+        switch (rotation) {
+            case 90:
+                frameRegion = new RectF(region.top, 1 - region.right, region.bottom, 1 - region.left);
+                break;
+            case 180:
+                frameRegion = new RectF(1 - region.right, 1 - region.bottom, 1 - region.left, 1 - region.top);
+                break;
+            case 270:
+                frameRegion = new RectF(1 - region.bottom, region.left, 1 - region.top, region.right);
+                break;
+            default:
+                frameRegion = region;
+                break;
+        }
+
+        if (mCameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+            frameRegion = new RectF(1 - frameRegion.right, frameRegion.top, 1 - frameRegion.left, frameRegion.bottom);
+        }
+
+        int align = 2 * mDetectionDownscale;
+        int left = (int) (frameRegion.left * frameWidth) & ~1;
+        int top = (int) (frameRegion.top * frameHeight) & ~1;
+        int width = (Math.round(frameRegion.right * frameWidth) - left) / align * align;
+        int height = (Math.round(frameRegion.bottom * frameHeight) - top) / align * align;
+
+        if (width < align) {
+            width = align;
+            left = Math.min(left, frameWidth - align);
+        }
+        if (height < align) {
+            height = align;
+            top = Math.min(top, frameHeight - align);
+        }
+
+        if (mDetectionDownscale == 1 && width == frameWidth && height == frameHeight) {
+            return null;
+        }
+        return new Rect(left, top, left + width, top + height);
+    }
+
+    private void stopFrameProcessing() {
+        synchronized (mCameraLock) {
+            if (mFrameProcessor != null) {
+                mFrameProcessor.cleanup();
+                mFrameProcessor = null;
+            }
+        }
+    }
+
+    /**
+     * Points the camera at the preview surface.
+     *
+     * @return false if the surface was destroyed or couldn't be used, which is reported as a
+     * {@link CameraKitError}; the preview starts with the next surface change
+     */
+    private boolean setupPreview() {
         synchronized (mCameraLock) {
+            Surface surface = mPreview.getSurface();
+            if (surface == null || !surface.isValid()) {
+                return false;
+            }
+
             try {
                 mCamera.reconnect();
                 mCamera.setPreviewDisplay(mPreview.getSurfaceHolder());
+                return true;
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                notifyErrorListener(e);
+                return false;
             }
         }
     }
@@ -704,18 +1008,26 @@ public class Camera1 extends CameraImpl {
     private void releaseCamera() {
         synchronized (mCameraLock) {
             if (mCamera != null) {
+                // Preview buffers go back to the pool while the camera still owns them.
+                stopFrameProcessing();
+
+                // Not created yet if openCamera() failed reading the parameters.
+                if (mNegotiator != null) {
+                    mNegotiator.cancel();
+                    mNegotiator = null;
+                }
+
                 mCamera.lock();
                 mCamera.release();
                 mCamera = null;
                 mCameraParameters = null;
+                mParametersTransaction = null;
+                mCapabilities = null;
                 mPreviewSize = null;
                 mCaptureSize = null;
                 mVideoSize = null;
 
                 mEventDispatcher.dispatch(new CameraKitEvent(CameraKitEvent.TYPE_CAMERA_CLOSE));
-                if (mFrameProcessor != null) {
-                    mFrameProcessor.release();
-                }
             }
         }
     }
@@ -758,147 +1070,154 @@ public class Camera1 extends CameraImpl {
         mEventDispatcher.dispatch(error);
     }
 
-    private Camera.Parameters getCameraParameters() {
-        if (mCamera != null) {
-            try {
-                return mCamera.getParameters();
-            } catch (Exception e) {
-                return null;
-            }
-        }
-
-        return null;
-    }
-
-    private void adjustCameraParameters() {
+    /**
+     * @return the {@link CameraConfigurationNegotiator} inputs that were missing, 0 if the
+     * camera is fully configured
+     */
+    private int adjustCameraParameters() {
         synchronized (mCameraLock) {
             if (mShowingPreview) {
                 mCamera.stopPreview();
             }
 
-            adjustCameraParameters(0);
+            int missingInputs = applyCameraParameters();
 
             if (mShowingPreview) {
                 mCamera.startPreview();
             }
+
+            return missingInputs;
         }
     }
 
-    private void adjustCameraParameters(int currentTry) {
-        boolean haveToReadjust = false;
-        Camera.Parameters resolutionLess = mCamera.getParameters();
+    private int applyCameraParameters() {
+        int missingInputs = 0;
 
-        if (getPreviewResolution() != null) {
+        // Everything below goes to the camera in one setParameters call.
+        mParametersTransaction.beginBatch();
+
+        Size previewSize = getPreviewResolution();
+        if (previewSize != null) {
             mPreview.setPreviewParameters(
-                    getPreviewResolution().getWidth(),
-                    getPreviewResolution().getHeight(),
+                    previewSize.getWidth(),
+                    previewSize.getHeight(),
                     mCameraParameters.getPreviewFormat()
             );
 
-            mCameraParameters.setPreviewSize(
-                    getPreviewResolution().getWidth(),
-                    getPreviewResolution().getHeight()
-            );
-
-            try {
-                mCamera.setParameters(mCameraParameters);
-                resolutionLess = mCameraParameters;
-            } catch (Exception e) {
-                notifyErrorListener(e);
-                // Some phones can't set parameters that camerakit has chosen, so fallback to defaults
-                mCameraParameters = resolutionLess;
-            }
+            mCameraParameters.setPreviewSize(previewSize.getWidth(), previewSize.getHeight());
         } else {
-            haveToReadjust = true;
+            missingInputs |= CameraConfigurationNegotiator.INPUT_PREVIEW_SIZE;
         }
 
-        if (getCaptureResolution() != null) {
-            mCameraParameters.setPictureSize(
-                    getCaptureResolution().getWidth(),
-                    getCaptureResolution().getHeight()
-            );
-
-            try {
-                mCamera.setParameters(mCameraParameters);
-                resolutionLess = mCameraParameters;
-            } catch (Exception e) {
-                notifyErrorListener(e);
-                //Some phones can't set parameters that camerakit has chosen, so fallback to defaults
-                mCameraParameters = resolutionLess;
-            }
+        Size captureSize = getCaptureResolution();
+        if (captureSize != null) {
+            mCameraParameters.setPictureSize(captureSize.getWidth(), captureSize.getHeight());
         } else {
-            haveToReadjust = true;
+            missingInputs |= CameraConfigurationNegotiator.INPUT_CAPTURE_SIZE;
         }
 
-        int rotation = calculateCaptureRotation();
-        mCameraParameters.setRotation(rotation);
-
-        setFocus(mFocus);
+        applyCameraSettings();
 
         try {
-            setFlash(mFlash);
+            mParametersTransaction.endBatch();
         } catch (Exception e) {
             notifyErrorListener(e);
-        }
 
-        if (mCameraParameters.isZoomSupported()) {
-            setZoom(mZoom);
-        }
-
-        mCamera.setParameters(mCameraParameters);
+            // Some phones can't set parameters that camerakit has chosen. Try the sizes one at a
+            // time and fall back to the camera's defaults for any it won't take.
+            if (previewSize != null) {
+                mParametersTransaction.beginBatch();
+                mCameraParameters.setPreviewSize(previewSize.getWidth(), previewSize.getHeight());
+                endBatchOrNotify();
+            }
 
-        if (haveToReadjust && currentTry < 100) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            if (captureSize != null) {
+                mParametersTransaction.beginBatch();
+                mCameraParameters.setPictureSize(captureSize.getWidth(), captureSize.getHeight());
+                endBatchOrNotify();
             }
 
-            notifyErrorListener(String.format("retryAdjustParam Failed, attempt #: %d", currentTry));
-            adjustCameraParameters(currentTry + 1);
+            mParametersTransaction.beginBatch();
+            applyCameraSettings();
+            endBatchOrNotify();
         }
+
+        return missingInputs;
     }
 
-    private void collectCameraProperties() {
-        mCameraProperties = new CameraProperties(mCameraParameters.getVerticalViewAngle(),
-                mCameraParameters.getHorizontalViewAngle());
+    private void readCameraParameters() {
+        mCameraParameters = mCamera.getParameters();
+        mParametersTransaction = new CameraParametersTransaction(mCamera, mCameraParameters);
+        mCapabilities = mCapabilityStore.getProfile(mCameraId, mCameraParameters);
+        mCameraProperties = mCapabilities.getCameraProperties();
+
+        // The profile is immutable, so the sizes are taken from it once here rather than by the
+        // getters, which may run on another thread while the camera is released or reopened.
+        mPreviewSize = mCapabilities.getPreviewSize(mLockVideoAspectRatio);
+        mCaptureSize = mCapabilities.getCaptureSize();
+        mVideoSize = mCapabilities.getVideoSize();
     }
 
-    private TreeSet<AspectRatio> findCommonAspectRatios(List<Camera.Size> previewSizes, List<Camera.Size> pictureSizes) {
-        Set<AspectRatio> previewAspectRatios = new HashSet<>();
-        for (Camera.Size size : previewSizes) {
-            AspectRatio deviceRatio = AspectRatio.of(CameraKit.Internal.screenHeight, CameraKit.Internal.screenWidth);
-            AspectRatio previewRatio = AspectRatio.of(size.width, size.height);
-            if (deviceRatio.equals(previewRatio)) {
-                previewAspectRatios.add(previewRatio);
+    private final CameraConfigurationNegotiator.Callback mNegotiatorCallback = new CameraConfigurationNegotiator.Callback() {
+        @Override
+        public int renegotiate() {
+            synchronized (mCameraLock) {
+                if (mCamera == null) {
+                    return 0;
+                }
+
+                // What was missing comes from the camera, so ask it again.
+                readCameraParameters();
+                int missingInputs = adjustCameraParameters();
+                if ((missingInputs & CameraConfigurationNegotiator.INPUT_PREVIEW_SIZE) == 0) {
+                    restartFrameProcessing();
+                }
+                return missingInputs;
             }
         }
 
-        Set<AspectRatio> captureAspectRatios = new HashSet<>();
-        for (Camera.Size size : pictureSizes) {
-            captureAspectRatios.add(AspectRatio.of(size.width, size.height));
+        @Override
+        public void onGiveUp(int missingInputs, long elapsedMillis, int attempts) {
+            String[] missing = CameraConfigurationNegotiator.describe(missingInputs);
+
+            CameraKitError error = new CameraKitError();
+            error.setMessage(String.format(
+                    "Camera %d configuration incomplete after %d ms and %d attempts, missing %s",
+                    mCameraId, elapsedMillis, attempts, Arrays.toString(missing)));
+            error.getData().putInt("cameraId", mCameraId);
+            error.getData().putStringArray("missingInputs", missing);
+            error.getData().putLong("elapsedMillis", elapsedMillis);
+            error.getData().putInt("attempts", attempts);
+            mEventDispatcher.dispatch(error);
         }
+    };
 
-        TreeSet<AspectRatio> output = new TreeSet<>();
-        if (previewAspectRatios.size() == 0) {
-            // if no common aspect ratios
-            Camera.Size maxSize = previewSizes.get(0);
-            AspectRatio maxPreviewAspectRatio = AspectRatio.of(maxSize.width, maxSize.height);
-            for (AspectRatio aspectRatio : captureAspectRatios) {
-                if (aspectRatio.equals(maxPreviewAspectRatio)) {
-                    output.add(aspectRatio);
-                }
-            }
-        } else {
-            // if common aspect ratios exist
-            for (AspectRatio aspectRatio : previewAspectRatios) {
-                if (captureAspectRatios.contains(aspectRatio)) {
-                    output.add(aspectRatio);
-                }
-            }
+    /**
+     * Puts capture rotation, focus, flash and zoom as currently set into the parameters. Call
+     * within a batch so they are sent together.
+     */
+    private void applyCameraSettings() {
+        mCameraParameters.setRotation(calculateCaptureRotation());
+
+        setFocus(mFocus);
+
+        try {
+            setFlash(mFlash);
+        } catch (Exception e) {
+            notifyErrorListener(e);
+        }
+
+        if (mCapabilities.isZoomSupported()) {
+            setZoom(mZoom);
         }
+    }
 
-        return output;
+    private void endBatchOrNotify() {
+        try {
+            mParametersTransaction.endBatch();
+        } catch (Exception e) {
+            notifyErrorListener(e);
+        }
     }
 
     private boolean prepareMediaRecorder(File videoFile) throws IOException {
@@ -1041,22 +1360,21 @@ public class Camera1 extends CameraImpl {
     }
 
     private void resetFocus(final boolean success, final Camera camera) {
-        mHandler.removeCallbacksAndMessages(null);
-        mHandler.postDelayed(new Runnable() {
+        if (mResetFocus != null) {
+            mHandler.removeCallbacks(mResetFocus);
+        }
+
+        mResetFocus = new Runnable() {
             @Override
             public void run() {
                 synchronized (mCameraLock) {
                     if (mCamera != null) {
                         mCamera.cancelAutoFocus();
-                        Camera.Parameters parameters = getCameraParameters();
-                        if (parameters == null) return;
-
-                        if (parameters.getFocusMode() != Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE) {
-                            parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
-                            parameters.setFocusAreas(null);
-                            parameters.setMeteringAreas(null);
-                            mCamera.setParameters(parameters);
-                        }
+
+                        mCameraParameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+                        mCameraParameters.setFocusAreas(null);
+                        mCameraParameters.setMeteringAreas(null);
+                        mParametersTransaction.commit();
 
                         if (mAutofocusCallback != null) {
                             mAutofocusCallback.onAutoFocus(success, mCamera);
@@ -1064,7 +1382,8 @@ public class Camera1 extends CameraImpl {
                     }
                 }
             }
-        }, DELAY_MILLIS_BEFORE_RESETTING_FOCUS);
+        };
+        mHandler.postDelayed(mResetFocus, DELAY_MILLIS_BEFORE_RESETTING_FOCUS);
     }
 
     private Rect calculateFocusArea(float x, float y) {
@@ -0,0 +1,360 @@
+package com.wonderkiln.camerakit;
+
+import android.content.res.Resources;
+import android.hardware.Camera;
+import android.util.DisplayMetrics;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * What one camera supports, and the sizes Camera1 picks from that, worked out once per camera id
+ * and kept by {@link CameraCapabilityStore}. Reopening a camera, flipping back to it or starting
+ * the app again reuses the profile instead of re-parsing every supported size and mode list and
+ * intersecting aspect ratios again. A profile only goes stale when the screen size changes, since
+ * the preferred aspect ratio follows the screen.
+ */
+class CameraCapabilityProfile {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Size mScreenSize;
+
+    // Largest first.
+    private final List<Size> mPreviewSizes;
+    private final List<Size> mPictureSizes;
+    private final List<Size> mVideoSizes;
+    private final Size mFirstPreviewSize;
+
+    private final CameraProperties mCameraProperties;
+    private final List<String> mFocusModes;
+    private final List<String> mFlashModes;
+    private final List<Integer> mZoomRatios;
+
+    private final Size mPreviewSize;
+    private final Size mPreviewSizeForVideo;
+    private final Size mCaptureSize;
+    private final Size mVideoSize;
+
+    CameraCapabilityProfile(Camera.Parameters parameters, Size screenSize) {
+        mScreenSize = screenSize;
+
+        List<Camera.Size> previewSizes = parameters.getSupportedPreviewSizes();
+        mPreviewSizes = toSizes(previewSizes);
+        mFirstPreviewSize = previewSizes == null || previewSizes.isEmpty()
+                ? null : new Size(previewSizes.get(0).width, previewSizes.get(0).height);
+        mPictureSizes = toSizes(parameters.getSupportedPictureSizes());
+        List<Camera.Size> videoSizes = parameters.getSupportedVideoSizes();
+        mVideoSizes = videoSizes != null ? toSizes(videoSizes) : null;
+
+        mCameraProperties = new CameraProperties(parameters.getVerticalViewAngle(),
+                parameters.getHorizontalViewAngle());
+        mFocusModes = copyOf(parameters.getSupportedFocusModes());
+        mFlashModes = copyOf(parameters.getSupportedFlashModes());
+        mZoomRatios = parameters.isZoomSupported()
+                ? copyOf(parameters.getZoomRatios()) : Collections.<Integer>emptyList();
+
+        TreeSet<AspectRatio> pictureRatios = findCommonAspectRatios(mPreviewSizes, mPictureSizes);
+        AspectRatio pictureRatio = pictureRatios.size() > 0 ? pictureRatios.last() : null;
+
+        mPreviewSize = findLargest(mPreviewSizes, pictureRatio);
+        mCaptureSize = findLargest(mPictureSizes, pictureRatio);
+
+        if (mVideoSizes != null) {
+            TreeSet<AspectRatio> videoRatios = findCommonAspectRatios(mPreviewSizes, mVideoSizes);
+            mVideoSize = findLargest(mVideoSizes, videoRatios.size() > 0 ? videoRatios.last() : null);
+
+            // Largest ratio that suits preview, pictures and video alike.
+            AspectRatio sharedRatio = null;
+            Iterator<AspectRatio> descendingRatios = pictureRatios.descendingIterator();
+            while (sharedRatio == null && descendingRatios.hasNext()) {
+                AspectRatio ratio = descendingRatios.next();
+                if (videoRatios.contains(ratio)) {
+                    sharedRatio = ratio;
+                }
+            }
+            mPreviewSizeForVideo = sharedRatio != null ? findLargest(mPreviewSizes, sharedRatio) : mPreviewSize;
+        } else {
+            // Video is recorded at the picture size.
+            mVideoSize = mCaptureSize;
+            mPreviewSizeForVideo = mPreviewSize;
+        }
+    }
+
+    private CameraCapabilityProfile(ByteBuffer in) {
+        mScreenSize = readSize(in);
+        mPreviewSizes = readSizes(in);
+        mPictureSizes = readSizes(in);
+        mVideoSizes = readSizes(in);
+        mFirstPreviewSize = readSize(in);
+        mCameraProperties = new CameraProperties(in.getFloat(), in.getFloat());
+        mFocusModes = readStrings(in);
+        mFlashModes = readStrings(in);
+        int zoomCount = in.getInt();
+        if (zoomCount < 0 || zoomCount > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        List<Integer> zoomRatios = new ArrayList<>(zoomCount);
+        for (int i = 0; i < zoomCount; i++) {
+            zoomRatios.add(in.getInt());
+        }
+        mZoomRatios = Collections.unmodifiableList(zoomRatios);
+        mPreviewSize = readSize(in);
+        mPreviewSizeForVideo = readSize(in);
+        mCaptureSize = readSize(in);
+        mVideoSize = readSize(in);
+    }
+
+    /**
+     * Reads a profile written by {@link #writeTo(DataOutputStream)}.
+     *
+     * @throws BufferUnderflowException if the data is cut short
+     */
+    static CameraCapabilityProfile readFrom(ByteBuffer in) {
+        return new CameraCapabilityProfile(in);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        writeSize(out, mScreenSize);
+        writeSizes(out, mPreviewSizes);
+        writeSizes(out, mPictureSizes);
+        writeSizes(out, mVideoSizes);
+        writeSize(out, mFirstPreviewSize);
+        out.writeFloat(mCameraProperties.verticalViewingAngle);
+        out.writeFloat(mCameraProperties.horizontalViewingAngle);
+        writeStrings(out, mFocusModes);
+        writeStrings(out, mFlashModes);
+        out.writeInt(mZoomRatios.size());
+        for (int ratio : mZoomRatios) {
+            out.writeInt(ratio);
+        }
+        writeSize(out, mPreviewSize);
+        writeSize(out, mPreviewSizeForVideo);
+        writeSize(out, mCaptureSize);
+        writeSize(out, mVideoSize);
+    }
+
+    /**
+     * False if the camera didn't report enough to choose preview and capture sizes, which some
+     * devices only do once the camera has settled.
+     */
+    boolean isComplete() {
+        return mPreviewSize != null && mCaptureSize != null;
+    }
+
+    /**
+     * Whether this profile was worked out for the screen as it is now.
+     */
+    boolean isCurrent() {
+        return mScreenSize.equals(getScreenSize());
+    }
+
+    /**
+     * @param lockVideoAspectRatio prefer an aspect ratio video can also be recorded in
+     */
+    Size getPreviewSize(boolean lockVideoAspectRatio) {
+        return lockVideoAspectRatio ? mPreviewSizeForVideo : mPreviewSize;
+    }
+
+    Size getCaptureSize() {
+        return mCaptureSize;
+    }
+
+    Size getVideoSize() {
+        return mVideoSize;
+    }
+
+    CameraProperties getCameraProperties() {
+        return mCameraProperties;
+    }
+
+    List<Size> getPreviewSizes() {
+        return Collections.unmodifiableList(mPreviewSizes);
+    }
+
+    List<Size> getPictureSizes() {
+        return Collections.unmodifiableList(mPictureSizes);
+    }
+
+    /**
+     * Null if the camera records video at preview sizes.
+     */
+    List<Size> getVideoSizes() {
+        return mVideoSizes != null ? Collections.unmodifiableList(mVideoSizes) : null;
+    }
+
+    List<String> getFocusModes() {
+        return mFocusModes != null ? mFocusModes : Collections.<String>emptyList();
+    }
+
+    /**
+     * Null if the camera has no flash settings at all.
+     */
+    List<String> getFlashModes() {
+        return mFlashModes;
+    }
+
+    boolean isZoomSupported() {
+        return !mZoomRatios.isEmpty();
+    }
+
+    /**
+     * Zoom ratios in hundredths, one per zoom index. Empty if zoom isn't supported.
+     */
+    List<Integer> getZoomRatios() {
+        return mZoomRatios;
+    }
+
+    private static <T> List<T> copyOf(List<T> list) {
+        return list != null ? Collections.unmodifiableList(new ArrayList<>(list)) : null;
+    }
+
+    private static List<Size> toSizes(List<Camera.Size> cameraSizes) {
+        if (cameraSizes == null) {
+            return new ArrayList<>();
+        }
+
+        List<Size> sizes = new ArrayList<>(cameraSizes.size());
+        for (Camera.Size size : cameraSizes) {
+            sizes.add(new Size(size.width, size.height));
+        }
+        Collections.sort(sizes, Collections.reverseOrder());
+        return sizes;
+    }
+
+    private static Size findLargest(List<Size> sizes, AspectRatio ratio) {
+        for (Size size : sizes) {
+            if (ratio == null || ratio.matches(size)) {
+                return size;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Aspect ratios offered for both preview and {@code otherSizes}, limited to the screen's ratio
+     * when the camera can preview in it, otherwise to the ratio of the first preview size the
+     * camera reported.
+     */
+    private TreeSet<AspectRatio> findCommonAspectRatios(List<Size> previewSizes, List<Size> otherSizes) {
+        AspectRatio screenRatio = AspectRatio.of(mScreenSize.getWidth(), mScreenSize.getHeight());
+
+        Set<AspectRatio> previewRatios = new HashSet<>();
+        for (Size size : previewSizes) {
+            AspectRatio previewRatio = AspectRatio.of(size.getWidth(), size.getHeight());
+            if (screenRatio.equals(previewRatio)) {
+                previewRatios.add(previewRatio);
+            }
+        }
+
+        Set<AspectRatio> otherRatios = new HashSet<>();
+        for (Size size : otherSizes) {
+            otherRatios.add(AspectRatio.of(size.getWidth(), size.getHeight()));
+        }
+
+        TreeSet<AspectRatio> output = new TreeSet<>();
+        if (previewRatios.size() == 0) {
+            if (mFirstPreviewSize == null) {
+                return output;
+            }
+
+            // No preview size matches the screen, fall back to the first preview's ratio.
+            AspectRatio firstPreviewRatio = AspectRatio.of(mFirstPreviewSize.getWidth(), mFirstPreviewSize.getHeight());
+            if (otherRatios.contains(firstPreviewRatio)) {
+                output.add(firstPreviewRatio);
+            }
+        } else {
+            for (AspectRatio ratio : previewRatios) {
+                if (otherRatios.contains(ratio)) {
+                    output.add(ratio);
+                }
+            }
+        }
+
+        return output;
+    }
+
+    /**
+     * The screen as long side by short side, the same way camera sizes are reported, so the
+     * profile survives rotation.
+     */
+    static Size getScreenSize() {
+        DisplayMetrics metrics = Resources.getSystem().getDisplayMetrics();
+        return new Size(Math.max(metrics.widthPixels, metrics.heightPixels),
+                Math.min(metrics.widthPixels, metrics.heightPixels));
+    }
+
+    private static void writeSize(DataOutputStream out, Size size) throws IOException {
+        out.writeInt(size != null ? size.getWidth() : -1);
+        out.writeInt(size != null ? size.getHeight() : -1);
+    }
+
+    private static Size readSize(ByteBuffer in) {
+        int width = in.getInt();
+        int height = in.getInt();
+        return width >= 0 ? new Size(width, height) : null;
+    }
+
+    private static void writeSizes(DataOutputStream out, List<Size> sizes) throws IOException {
+        out.writeInt(sizes != null ? sizes.size() : -1);
+        if (sizes != null) {
+            for (Size size : sizes) {
+                writeSize(out, size);
+            }
+        }
+    }
+
+    private static List<Size> readSizes(ByteBuffer in) {
+        int count = in.getInt();
+        if (count < 0) {
+            return null;
+        } else if (count > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        List<Size> sizes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            sizes.add(readSize(in));
+        }
+        return sizes;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings != null ? strings.size() : -1);
+        if (strings != null) {
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(UTF_8);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static List<String> readStrings(ByteBuffer in) {
+        int count = in.getInt();
+        if (count < 0) {
+            return null;
+        } else if (count > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[in.getShort() & 0xffff];
+            in.get(bytes);
+            strings.add(new String(bytes, UTF_8));
+        }
+        return Collections.unmodifiableList(strings);
+    }
+
+}
@@ -0,0 +1,278 @@
+package com.wonderkiln.camerakit;
+
+import android.content.Context;
+import android.hardware.Camera;
+import android.os.Build;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Keeps what Camera1 learns about the device's cameras across app starts: which cameras there are,
+ * which way they face and how they're mounted, and a {@link CameraCapabilityProfile} for each
+ * camera that has been opened, along with the cameras that have to be reopened after every capture.
+ * On a cold start the cameras can then be told apart without calling
+ * {@link Camera#getCameraInfo(int, Camera.CameraInfo)} for each one, and the preview, capture and
+ * video sizes are known before any supported-size list is parsed.
+ * <p/>
+ * Everything is kept in one small file in the app's cache directory, memory mapped when it's
+ * read. The file starts with a format version and {@link Build#FINGERPRINT}, and is ignored if
+ * either doesn't match, so a system update that changes the camera HAL starts over.
+ */
+class CameraCapabilityStore {
+
+    private static final String TAG = CameraCapabilityStore.class.getSimpleName();
+
+    private static final String FILE_NAME = "camerakit_capabilities";
+
+    private static final int MAGIC = 0x434b4350; // CKCP
+    private static final int VERSION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static CameraCapabilityStore sInstance;
+
+    static synchronized CameraCapabilityStore getInstance(Context context) {
+        if (sInstance == null) {
+            File cacheDir = context.getApplicationContext().getCacheDir();
+            sInstance = new CameraCapabilityStore(cacheDir != null ? new File(cacheDir, FILE_NAME) : null);
+        }
+        return sInstance;
+    }
+
+    private final File mFile;
+    private boolean mLoaded;
+
+    // Indexed by camera id, null until every camera has been looked at once.
+    private int[] mFacings;
+    private int[] mOrientations;
+
+    private final SparseArray<CameraCapabilityProfile> mProfiles = new SparseArray<>();
+
+    // Camera ids that couldn't restart their preview in place after a capture.
+    private final SparseBooleanArray mReopenAfterCapture = new SparseBooleanArray();
+
+    private CameraCapabilityStore(File file) {
+        mFile = file;
+    }
+
+    synchronized int getNumberOfCameras() {
+        ensureCameraInfo();
+        return mFacings.length;
+    }
+
+    /**
+     * Fills in {@code facing} and {@code orientation} of {@code cameraInfo}, like
+     * {@link Camera#getCameraInfo(int, Camera.CameraInfo)}.
+     */
+    synchronized void getCameraInfo(int cameraId, Camera.CameraInfo cameraInfo) {
+        ensureCameraInfo();
+        cameraInfo.facing = mFacings[cameraId];
+        cameraInfo.orientation = mOrientations[cameraId];
+    }
+
+    /**
+     * The profile for {@code cameraId} if one is stored and still matches the screen, otherwise
+     * null. Doesn't touch the camera.
+     */
+    synchronized CameraCapabilityProfile getProfile(int cameraId) {
+        ensureLoaded();
+        CameraCapabilityProfile profile = mProfiles.get(cameraId);
+        return profile != null && profile.isCurrent() ? profile : null;
+    }
+
+    /**
+     * The profile for {@code cameraId}, worked out from {@code parameters} if there isn't a
+     * current one yet. It's only kept if it's {@link CameraCapabilityProfile#isComplete()
+     * complete}, so a camera that hadn't settled is asked again next time.
+     */
+    synchronized CameraCapabilityProfile getProfile(int cameraId, Camera.Parameters parameters) {
+        CameraCapabilityProfile profile = getProfile(cameraId);
+        if (profile == null) {
+            profile = new CameraCapabilityProfile(parameters, CameraCapabilityProfile.getScreenSize());
+            if (profile.isComplete()) {
+                mProfiles.put(cameraId, profile);
+                save();
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Whether {@code cameraId} has failed to restart its preview after a capture before, so it has
+     * to be reopened instead. Unlike a profile it's kept when the screen changes.
+     */
+    synchronized boolean needsReopenAfterCapture(int cameraId) {
+        ensureLoaded();
+        return mReopenAfterCapture.get(cameraId);
+    }
+
+    synchronized void setNeedsReopenAfterCapture(int cameraId) {
+        ensureLoaded();
+        if (!mReopenAfterCapture.get(cameraId)) {
+            mReopenAfterCapture.put(cameraId, true);
+            save();
+        }
+    }
+
+    private void ensureCameraInfo() {
+        ensureLoaded();
+        if (mFacings != null) {
+            return;
+        }
+
+        int count = Camera.getNumberOfCameras();
+        int[] facings = new int[count];
+        int[] orientations = new int[count];
+        Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+        for (int i = 0; i < count; i++) {
+            Camera.getCameraInfo(i, cameraInfo);
+            facings[i] = cameraInfo.facing;
+            orientations[i] = cameraInfo.orientation;
+        }
+
+        mFacings = facings;
+        mOrientations = orientations;
+        save();
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+
+        mLoaded = true;
+        if (mFile == null || !mFile.isFile()) {
+            return;
+        }
+
+        try {
+            read(map(mFile));
+        } catch (IOException | BufferUnderflowException e) {
+            Log.w(TAG, "Discarding unreadable camera capability cache.", e);
+            mFacings = null;
+            mOrientations = null;
+            mProfiles.clear();
+            mReopenAfterCapture.clear();
+            mFile.delete();
+        }
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            // The mapping stays valid after the channel is closed.
+            FileChannel channel = input.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            input.close();
+        }
+    }
+
+    private void read(ByteBuffer in) {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            return;
+        }
+
+        byte[] fingerprint = new byte[in.getShort() & 0xffff];
+        in.get(fingerprint);
+        if (!Build.FINGERPRINT.equals(new String(fingerprint, UTF_8))) {
+            return;
+        }
+
+        int cameraCount = in.getInt();
+        if (cameraCount >= 0) {
+            if (cameraCount > in.remaining()) {
+                throw new BufferUnderflowException();
+            }
+
+            int[] facings = new int[cameraCount];
+            int[] orientations = new int[cameraCount];
+            for (int i = 0; i < cameraCount; i++) {
+                facings[i] = in.getInt();
+                orientations[i] = in.getInt();
+            }
+            mFacings = facings;
+            mOrientations = orientations;
+        }
+
+        for (int i = 0, count = in.getInt(); i < count; i++) {
+            int cameraId = in.getInt();
+            mProfiles.put(cameraId, CameraCapabilityProfile.readFrom(in));
+        }
+
+        for (int i = 0, count = in.getInt(); i < count; i++) {
+            mReopenAfterCapture.put(in.getInt(), true);
+        }
+    }
+
+    /**
+     * Writes to a temporary file first and renames it over the old one, so a crash halfway leaves
+     * either the previous cache or none.
+     */
+    private void save() {
+        if (mFile == null) {
+            return;
+        }
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                write(out);
+            } finally {
+                out.close();
+            }
+
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Unable to rename " + temp + " to " + mFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save camera capability cache.", e);
+            temp.delete();
+        }
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        byte[] fingerprint = Build.FINGERPRINT.getBytes(UTF_8);
+        out.writeShort(fingerprint.length);
+        out.write(fingerprint);
+
+        if (mFacings != null) {
+            out.writeInt(mFacings.length);
+            for (int i = 0; i < mFacings.length; i++) {
+                out.writeInt(mFacings[i]);
+                out.writeInt(mOrientations[i]);
+            }
+        } else {
+            out.writeInt(-1);
+        }
+
+        out.writeInt(mProfiles.size());
+        for (int i = 0; i < mProfiles.size(); i++) {
+            out.writeInt(mProfiles.keyAt(i));
+            mProfiles.valueAt(i).writeTo(out);
+        }
+
+        out.writeInt(mReopenAfterCapture.size());
+        for (int i = 0; i < mReopenAfterCapture.size(); i++) {
+            out.writeInt(mReopenAfterCapture.keyAt(i));
+        }
+    }
+
+}
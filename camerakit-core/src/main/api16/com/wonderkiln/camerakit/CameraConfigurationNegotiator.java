@@ -0,0 +1,130 @@
+package com.wonderkiln.camerakit;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finishes configuring a camera whose configuration couldn't be completed right after it opened,
+ * because some of the inputs it needs were missing, such as the supported preview or picture
+ * sizes on devices that only report them once the camera has settled.
+ * <p/>
+ * Rather than retrying in a loop, it tries again when it's told something changed, see
+ * {@link #signal()}, and otherwise at doubling intervals, until the inputs are there or the
+ * timeout is reached. Giving up is reported once, with what was missing.
+ */
+class CameraConfigurationNegotiator {
+
+    static final int INPUT_PREVIEW_SIZE = 1;
+    static final int INPUT_CAPTURE_SIZE = 1 << 1;
+
+    private static final long FIRST_RETRY_DELAY_MILLIS = 16;
+
+    interface Callback {
+
+        /**
+         * Tries to complete the configuration again.
+         *
+         * @return the inputs still missing, 0 once the configuration is complete
+         */
+        int renegotiate();
+
+        void onGiveUp(int missingInputs, long elapsedMillis, int attempts);
+
+    }
+
+    private final Handler mHandler;
+    private final long mTimeoutMillis;
+    private final Callback mCallback;
+
+    private volatile int mMissingInputs;
+    private long mStartMillis;
+    private long mRetryDelayMillis;
+    private int mAttempts;
+
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            retry();
+        }
+    };
+
+    CameraConfigurationNegotiator(Handler handler, long timeoutMillis, Callback callback) {
+        mHandler = handler;
+        mTimeoutMillis = timeoutMillis;
+        mCallback = callback;
+    }
+
+    /**
+     * Starts waiting for {@code missingInputs}, or does nothing if none are missing.
+     */
+    void begin(int missingInputs) {
+        cancel();
+        if (missingInputs == 0) {
+            return;
+        }
+
+        mMissingInputs = missingInputs;
+        mStartMillis = SystemClock.elapsedRealtime();
+        mRetryDelayMillis = FIRST_RETRY_DELAY_MILLIS;
+        mAttempts = 1;
+        mHandler.postDelayed(mRetry, mRetryDelayMillis);
+    }
+
+    /**
+     * Something the configuration depends on changed, try again now instead of at the next
+     * interval.
+     */
+    void signal() {
+        if (isPending()) {
+            mHandler.removeCallbacks(mRetry);
+            mHandler.post(mRetry);
+        }
+    }
+
+    void cancel() {
+        mHandler.removeCallbacks(mRetry);
+        mMissingInputs = 0;
+    }
+
+    boolean isPending() {
+        return mMissingInputs != 0;
+    }
+
+    private void retry() {
+        if (!isPending()) {
+            return;
+        }
+
+        mAttempts++;
+        mMissingInputs = mCallback.renegotiate();
+        if (mMissingInputs == 0) {
+            return;
+        }
+
+        long elapsedMillis = SystemClock.elapsedRealtime() - mStartMillis;
+        if (elapsedMillis >= mTimeoutMillis) {
+            int missingInputs = mMissingInputs;
+            mMissingInputs = 0;
+            mCallback.onGiveUp(missingInputs, elapsedMillis, mAttempts);
+            return;
+        }
+
+        mRetryDelayMillis = Math.min(mRetryDelayMillis * 2, mTimeoutMillis - elapsedMillis);
+        mHandler.postDelayed(mRetry, mRetryDelayMillis);
+    }
+
+    static String[] describe(int inputs) {
+        List<String> names = new ArrayList<>();
+        if ((inputs & INPUT_PREVIEW_SIZE) != 0) {
+            names.add("previewSize");
+        }
+        if ((inputs & INPUT_CAPTURE_SIZE) != 0) {
+            names.add("captureSize");
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.wonderkiln.camerakit;
+
+import android.hardware.Camera;
+
+/**
+ * Decides when changes made to a camera's {@link Camera.Parameters} are sent to the camera. Every
+ * {@link Camera#setParameters(Camera.Parameters)} is a round trip into the camera service, so
+ * changes made between {@link #beginBatch()} and {@link #endBatch()} go out together, and a
+ * commit that leaves the parameters as the camera last accepted them doesn't go out at all.
+ * <p/>
+ * Changes are made on the parameters directly, then {@link #commit()} is called. Not thread safe,
+ * callers hold the camera lock.
+ */
+class CameraParametersTransaction {
+
+    private final Camera mCamera;
+    private final Camera.Parameters mParameters;
+
+    // The parameters as the camera last accepted them.
+    private String mApplied;
+    private int mBatchDepth;
+
+    CameraParametersTransaction(Camera camera, Camera.Parameters parameters) {
+        mCamera = camera;
+        mParameters = parameters;
+        mApplied = parameters.flatten();
+    }
+
+    /**
+     * Holds back commits until the matching {@link #endBatch()}. Batches nest.
+     */
+    void beginBatch() {
+        mBatchDepth++;
+    }
+
+    /**
+     * Ends a batch, committing if it was the outermost one.
+     *
+     * @throws RuntimeException see {@link #commit()}
+     */
+    void endBatch() {
+        if (mBatchDepth > 0) {
+            mBatchDepth--;
+        }
+        commit();
+    }
+
+    /**
+     * Sends the parameters to the camera if they changed since they were last sent, unless a
+     * batch is open.
+     *
+     * @return true if the camera was called
+     * @throws RuntimeException if the camera rejected the parameters, which are then back to how
+     *                          the camera last accepted them
+     */
+    boolean commit() {
+        if (mBatchDepth > 0) {
+            return false;
+        }
+
+        String flattened = mParameters.flatten();
+        if (flattened.equals(mApplied)) {
+            return false;
+        }
+
+        try {
+            mCamera.setParameters(mParameters);
+        } catch (RuntimeException e) {
+            mParameters.unflatten(mApplied);
+            throw e;
+        }
+
+        mApplied = flattened;
+        return true;
+    }
+
+}
@@ -0,0 +1,400 @@
+package com.wonderkiln.camerakit;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.text.TextBlock;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs every operation of a {@link CameraImpl} as a command on one camera thread, in the order
+ * they were made, so callers never wait on the camera or its lock. Results come back the way they
+ * always have: through the capture callbacks and the open and close events, now on the camera
+ * thread.
+ * <p/>
+ * Settings that only the latest value of matters are coalesced: while a command for one is still
+ * queued, a newer call takes it out of the queue and queues itself at the end, so a setting is
+ * still applied after everything that was called before it. Zoom changes are folded together the
+ * same way, so a pinch gesture costs the camera thread one zoom update per turn of its queue no
+ * matter how many touch events came in. Lifecycle, detector and capture commands are never
+ * coalesced.
+ * <p/>
+ * Getters read straight from the camera and don't wait for the queue.
+ */
+class CameraCommandQueue extends CameraImpl {
+
+    private static HandlerThread sCameraThread;
+
+    /**
+     * The camera thread. Only one camera can be open at a time, so it's shared.
+     */
+    static synchronized Looper getLooper() {
+        if (sCameraThread == null) {
+            sCameraThread = new HandlerThread("CameraKitCamera");
+            sCameraThread.setDaemon(true);
+            sCameraThread.start();
+        }
+        return sCameraThread.getLooper();
+    }
+
+    private final CameraImpl mCamera;
+    private final Handler mHandler;
+
+    // Guards the pending commands, so taking one out of the queue and queueing its replacement
+    // can't interleave with another caller doing the same.
+    private final Object mLock = new Object();
+    private final Map<String, Runnable> mLatest = new HashMap<>();
+
+    private boolean mZoomQueued;
+    private boolean mZoomAbsolute;
+    private float mZoomValue;
+
+    private final Runnable mApplyZoom = new Runnable() {
+        @Override
+        public void run() {
+            boolean absolute;
+            float value;
+            synchronized (mLock) {
+                // Already applied by a run that was taken out of the queue after it had started.
+                if (!mZoomQueued) {
+                    return;
+                }
+                absolute = mZoomAbsolute;
+                value = mZoomValue;
+                mZoomQueued = false;
+            }
+
+            if (absolute) {
+                mCamera.setZoom(value);
+            } else {
+                mCamera.modifyZoom(value);
+            }
+        }
+    };
+
+    CameraCommandQueue(CameraImpl camera) {
+        super(camera.mEventDispatcher, camera.mPreview);
+        mCamera = camera;
+        mHandler = new Handler(getLooper());
+    }
+
+    private void post(Runnable command) {
+        mHandler.post(command);
+    }
+
+    /**
+     * Queues {@code command} at the end, taking out a command for the same {@code setting} that
+     * hasn't run yet.
+     */
+    private void postLatest(String setting, Runnable command) {
+        synchronized (mLock) {
+            Runnable pending = mLatest.put(setting, command);
+            if (pending != null) {
+                mHandler.removeCallbacks(pending);
+            }
+            mHandler.post(command);
+        }
+    }
+
+    /**
+     * Queues the zoom change at the end, taking it out of the queue if it's already there.
+     */
+    private void postZoom() {
+        mHandler.removeCallbacks(mApplyZoom);
+        mHandler.post(mApplyZoom);
+    }
+
+    @Override
+    void start() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mCamera.start();
+            }
+        });
+    }
+
+    @Override
+    void stop() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mCamera.stop();
+            }
+        });
+    }
+
+    @Override
+    void setDisplayAndDeviceOrientation(final int displayOrientation, final int deviceOrientation) {
+        postLatest("orientation", new Runnable() {
+            @Override
+            public void run() {
+                mCamera.setDisplayAndDeviceOrientation(displayOrientation, deviceOrientation);
+            }
+        });
+    }
+
+    @Override
+    void setFacing(@Facing final int facing) {
+        postLatest("facing", new Runnable() {
+            @Override
+            public void run() {
+                mCamera.setFacing(facing);
+            }
+        });
+    }
+
+    @Override
+    void setFlash(@Flash final int flash) {
+        postLatest("flash", new Runnable() {
+            @Override
+            public void run() {
+                mCamera.setFlash(flash);
+            }
+        });
+    }
+
+    @Override
+    void setFocus(@Focus final int focus) {
+        postLatest("focus", new Runnable() {
+            @Override
+            public void run() {
+                mCamera.setFocus(focus);
+            }
+        });
+    }
+
+    @Override
+    void setMethod(@CaptureMethod final int method) {
+        postLatest("method", new Runnable() {
+            @Override
+            public void run() {
+                mCamera.setMethod(method);
+            }
+        });
+    }
+
+    @Override
+    void setTextDetector(final Detector<TextBlock> detector) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mCamera.setTextDetector(detector);
+            }
+        });
+    }
+
+    @Override
+    void addDetector(final Detector<?> detector, final float targetFps) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mCamera.addDetector(detector, targetFps);
+            }
+        });
+    }
+
+    @Override
+    void removeDetector(final Detector<?> detector) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mCamera.removeDetector(detector);
+            }
+        });
+    }
+
+    @Override
+    void setDetectionDutyCycle(final float dutyCycle) {
+        postLatest("detectionDutyCycle", new Runnable() {
+            @Override
+            public void run() {
+                mCamera.setDetectionDutyCycle(dutyCycle);
+            }
+        });
+    }
+
+    @Override
+    void setDetectionRegion(@Nullable Rect region) {
+        final Rect copy = region != null ? new Rect(region) : null;
+        postLatest("detectionRegion", new Runnable() {
+            @Override
+            public void run() {
+                mCamera.setDetectionRegion(copy);
+            }
+        });
+    }
+
+    @Override
+    void setDetectionDownscale(final int downscale) {
+        postLatest("detectionDownscale", new Runnable() {
+            @Override
+            public void run() {
+                mCamera.setDetectionDownscale(downscale);
+            }
+        });
+    }
+
+    @Override
+    List<FrameProcessingRunnable> getFrameProcessors() {
+        return mCamera.getFrameProcessors();
+    }
+
+    @Override
+    void setVideoQuality(@VideoQuality final int videoQuality) {
+        postLatest("videoQuality", new Runnable() {
+            @Override
+            public void run() {
+                mCamera.setVideoQuality(videoQuality);
+            }
+        });
+    }
+
+    @Override
+    void setVideoBitRate(final int videoBitRate) {
+        postLatest("videoBitRate", new Runnable() {
+            @Override
+            public void run() {
+                mCamera.setVideoBitRate(videoBitRate);
+            }
+        });
+    }
+
+    @Override
+    void setLockVideoAspectRatio(final boolean lockVideoAspectRatio) {
+        postLatest("lockVideoAspectRatio", new Runnable() {
+            @Override
+            public void run() {
+                mCamera.setLockVideoAspectRatio(lockVideoAspectRatio);
+            }
+        });
+    }
+
+    @Override
+    void setJpegQuality(final int jpegQuality) {
+        postLatest("jpegQuality", new Runnable() {
+            @Override
+            public void run() {
+                mCamera.setJpegQuality(jpegQuality);
+            }
+        });
+    }
+
+    @Override
+    void setZoom(float zoomFactor) {
+        synchronized (mLock) {
+            mZoomAbsolute = true;
+            mZoomValue = zoomFactor;
+            mZoomQueued = true;
+            postZoom();
+        }
+    }
+
+    /**
+     * Folded into a zoom change that's still queued: a relative one multiplies, an absolute one
+     * is scaled.
+     */
+    @Override
+    void modifyZoom(float modifier) {
+        synchronized (mLock) {
+            if (mZoomQueued) {
+                mZoomValue *= modifier;
+            } else {
+                mZoomAbsolute = false;
+                mZoomValue = modifier;
+                mZoomQueued = true;
+            }
+            postZoom();
+        }
+    }
+
+    @Override
+    void setFocusArea(final float x, final float y) {
+        postLatest("focusArea", new Runnable() {
+            @Override
+            public void run() {
+                mCamera.setFocusArea(x, y);
+            }
+        });
+    }
+
+    @Override
+    void captureImage(final ImageCapturedCallback callback) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mCamera.captureImage(callback);
+            }
+        });
+    }
+
+    @Override
+    void captureBurst(final int count, final BurstCapturedCallback callback) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mCamera.captureBurst(count, callback);
+            }
+        });
+    }
+
+    @Override
+    void captureVideo(final File videoFile, final VideoCapturedCallback callback) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mCamera.captureVideo(videoFile, callback);
+            }
+        });
+    }
+
+    @Override
+    void stopVideo() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mCamera.stopVideo();
+            }
+        });
+    }
+
+    @Override
+    Size getCaptureResolution() {
+        return mCamera.getCaptureResolution();
+    }
+
+    @Override
+    Size getVideoResolution() {
+        return mCamera.getVideoResolution();
+    }
+
+    @Override
+    Size getPreviewResolution() {
+        return mCamera.getPreviewResolution();
+    }
+
+    @Override
+    boolean isCameraOpened() {
+        return mCamera.isCameraOpened();
+    }
+
+    @Override
+    boolean frontCameraOnly() {
+        return mCamera.frontCameraOnly();
+    }
+
+    @Nullable
+    @Override
+    CameraProperties getCameraProperties() {
+        return mCamera.getCameraProperties();
+    }
+
+}
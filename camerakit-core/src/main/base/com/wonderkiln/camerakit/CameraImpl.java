@@ -1,11 +1,13 @@
 package com.wonderkiln.camerakit;
 
+import android.graphics.Rect;
 import android.support.annotation.Nullable;
 
 import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.text.TextBlock;
 
 import java.io.File;
+import java.util.List;
 
 abstract class CameraImpl {
 
@@ -27,10 +29,17 @@ abstract class CameraImpl {
     abstract void setFocus(@Focus int focus);
     abstract void setMethod(@CaptureMethod int method);
     abstract void setTextDetector(Detector<TextBlock> detector);
+    abstract void addDetector(Detector<?> detector, float targetFps);
+    abstract void removeDetector(Detector<?> detector);
+    abstract void setDetectionDutyCycle(float dutyCycle);
+    abstract void setDetectionRegion(@Nullable Rect region);
+    abstract void setDetectionDownscale(int downscale);
+    abstract List<FrameProcessingRunnable> getFrameProcessors();
 
     abstract void setVideoQuality(@VideoQuality int videoQuality);
     abstract void setVideoBitRate(int videoBitRate);
     abstract void setLockVideoAspectRatio(boolean lockVideoAspectRatio);
+    abstract void setJpegQuality(int jpegQuality);
 
     abstract void setZoom(float zoomFactor);
     abstract void modifyZoom(float modifier);
@@ -41,6 +50,11 @@ abstract class CameraImpl {
         void imageCaptured(byte[] jpeg);
     }
 
+    abstract void captureBurst(int count, BurstCapturedCallback callback);
+    interface BurstCapturedCallback {
+        void imageCaptured(byte[] jpeg, int index, long timestamp);
+    }
+
     abstract void captureVideo(File videoFile, VideoCapturedCallback callback);
     interface VideoCapturedCallback {
         void videoCaptured(File file);
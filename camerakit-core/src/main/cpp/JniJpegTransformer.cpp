@@ -2,6 +2,7 @@
 #include <stdio.h>
 #include <cstring>
 #include <unistd.h>
+#include <pthread.h>
 #include <turbojpeg.h>
 
 extern "C"
@@ -10,10 +11,18 @@ JNIEXPORT jobject JNICALL
 Java_com_wonderkiln_camerakit_JpegTransformer_jniStoreJpeg
         (JNIEnv *env, jobject obj, jbyteArray jpeg, jint jpegSize);
 
+JNIEXPORT jobject JNICALL
+Java_com_wonderkiln_camerakit_JpegTransformer_jniStoreJpegBuffer
+        (JNIEnv *env, jobject obj, jobject jpeg, jint jpegOffset, jint jpegSize);
+
 JNIEXPORT jbyteArray JNICALL
 Java_com_wonderkiln_camerakit_JpegTransformer_jniCommit
         (JNIEnv *env, jobject obj, jobject handle);
 
+JNIEXPORT jobject JNICALL
+Java_com_wonderkiln_camerakit_JpegTransformer_jniCommitBuffer
+        (JNIEnv *env, jobject obj, jobject handle);
+
 JNIEXPORT void JNICALL
 Java_com_wonderkiln_camerakit_JpegTransformer_jniReleaseJpeg
         (JNIEnv *env, jobject obj, jobject handle);
@@ -48,6 +57,10 @@ public:
     unsigned char *jpeg;
     unsigned long jpegSize;
 
+    // Global reference to the Java array whose elements back jpeg, or NULL when jpeg points
+    // into a direct ByteBuffer owned by the Java side.
+    jbyteArray jpegArray;
+
     int width;
     int height;
 
@@ -64,6 +77,7 @@ public:
     JpegTransformer() {
         jpeg = NULL;
         jpegSize = 0;
+        jpegArray = NULL;
 
         flipHorizontal = false;
         flipVertical = false;
@@ -77,19 +91,62 @@ public:
     }
 };
 
-JNIEXPORT jobject JNICALL
-Java_com_wonderkiln_camerakit_JpegTransformer_jniStoreJpeg
-        (JNIEnv *env, jobject obj, jbyteArray jpeg, jint jpegSize) {
-    tjhandle tjHandle = tjInitDecompress();
-    jbyte *jpegBuffer = env->GetByteArrayElements(jpeg, 0);
+/**
+ * TurboJPEG state shared by every JpegTransformer used on the same thread. The handle can both
+ * read headers and transform, and the scratch buffer only ever grows, so repeated commits stop
+ * allocating native memory once it fits the largest capture.
+ */
+class TurboJpegCache {
+public:
+    tjhandle tjHandle;
 
-    if (!jpegBuffer) return NULL;
+    unsigned char *scratchBuffer;
+    unsigned long scratchBufferSize;
+
+    TurboJpegCache() {
+        tjHandle = tjInitTransform();
+
+        scratchBuffer = NULL;
+        scratchBufferSize = 0;
+    }
+
+    ~TurboJpegCache() {
+        if (tjHandle != NULL) tjDestroy(tjHandle);
+        if (scratchBuffer != NULL) tjFree(scratchBuffer);
+    }
+};
+
+static pthread_key_t sTurboJpegCacheKey;
+static pthread_once_t sTurboJpegCacheKeyOnce = PTHREAD_ONCE_INIT;
+
+static void destroyTurboJpegCache(void *cache) {
+    delete (TurboJpegCache *) cache;
+}
+
+static void createTurboJpegCacheKey() {
+    pthread_key_create(&sTurboJpegCacheKey, destroyTurboJpegCache);
+}
+
+static TurboJpegCache *getTurboJpegCache() {
+    pthread_once(&sTurboJpegCacheKeyOnce, createTurboJpegCacheKey);
+
+    TurboJpegCache *cache = (TurboJpegCache *) pthread_getspecific(sTurboJpegCacheKey);
+    if (cache == NULL) {
+        cache = new TurboJpegCache();
+        pthread_setspecific(sTurboJpegCacheKey, cache);
+    }
+
+    return cache;
+}
+
+static JpegTransformer *createJpegTransformer(unsigned char *jpeg, unsigned long jpegSize) {
+    TurboJpegCache *cache = getTurboJpegCache();
 
     int width, height, jpegSubsamp;
     int status = tjDecompressHeader2(
-            tjHandle,
-            (unsigned char *) jpegBuffer,
-            (unsigned long) jpegSize,
+            cache->tjHandle,
+            jpeg,
+            jpegSize,
             &width,
             &height,
             &jpegSubsamp
@@ -102,44 +159,94 @@ Java_com_wonderkiln_camerakit_JpegTransformer_jniStoreJpeg
     JpegTransformer *jpegTransformer = new JpegTransformer();
     jpegTransformer->width = width;
     jpegTransformer->height = height;
-    jpegTransformer->jpeg = (unsigned char *) jpegBuffer;
-    jpegTransformer->jpegSize = (unsigned long) jpegSize;
+    jpegTransformer->jpeg = jpeg;
+    jpegTransformer->jpegSize = jpegSize;
+    return jpegTransformer;
+}
 
-    tjDestroy(tjHandle);
+JNIEXPORT jobject JNICALL
+Java_com_wonderkiln_camerakit_JpegTransformer_jniStoreJpeg
+        (JNIEnv *env, jobject obj, jbyteArray jpeg, jint jpegSize) {
+    jbyte *jpegBuffer = env->GetByteArrayElements(jpeg, 0);
+
+    if (!jpegBuffer) return NULL;
+
+    JpegTransformer *jpegTransformer = createJpegTransformer(
+            (unsigned char *) jpegBuffer,
+            (unsigned long) jpegSize
+    );
+
+    if (jpegTransformer == NULL) {
+        env->ReleaseByteArrayElements(jpeg, jpegBuffer, JNI_ABORT);
+        return NULL;
+    }
+
+    // The elements stay held until jniReleaseJpeg, so keep the array itself reachable too.
+    jpegTransformer->jpegArray = (jbyteArray) env->NewGlobalRef(jpeg);
     return env->NewDirectByteBuffer(jpegTransformer, 0);
 }
 
-JNIEXPORT jbyteArray JNICALL
-Java_com_wonderkiln_camerakit_JpegTransformer_jniCommit
-        (JNIEnv *env, jobject obj, jobject handle) {
-    JpegTransformer *jpegTransformer = (JpegTransformer *) env->GetDirectBufferAddress(handle);
+JNIEXPORT jobject JNICALL
+Java_com_wonderkiln_camerakit_JpegTransformer_jniStoreJpegBuffer
+        (JNIEnv *env, jobject obj, jobject jpeg, jint jpegOffset, jint jpegSize) {
+    unsigned char *jpegBuffer = (unsigned char *) env->GetDirectBufferAddress(jpeg);
 
-    unsigned char *jpeg = jpegTransformer->jpeg;
-    unsigned long jpegSize = jpegTransformer->jpegSize;
+    if (!jpegBuffer) return NULL;
 
-    tjhandle tjHandle = tjInitTransform();
+    JpegTransformer *jpegTransformer = createJpegTransformer(
+            jpegBuffer + jpegOffset,
+            (unsigned long) jpegSize
+    );
 
-    if (jpegTransformer->flipVertical) {
-        tjtransform *transform = new tjtransform();
-        transform->op = TJXOP_VFLIP;
-        tjTransform(tjHandle, jpeg, jpegSize, 1, &jpeg, &jpegSize, transform, 0);
+    if (jpegTransformer == NULL) {
+        return NULL;
     }
 
-    if (jpegTransformer->flipHorizontal) {
-        tjtransform *transform = new tjtransform();
-        transform->op = TJXOP_HFLIP;
-        tjTransform(tjHandle, jpeg, jpegSize, 1, &jpeg, &jpegSize, transform, 0);
-    }
+    return env->NewDirectByteBuffer(jpegTransformer, 0);
+}
 
-    tjtransform *transform = new tjtransform();
+/**
+ * Lossless operation equivalent to a vertical flip, then a horizontal flip, then a clockwise
+ * rotation, indexed by [rotation / 90][flipHorizontal][flipVertical].
+ */
+static const int COMBINED_TRANSFORM_OPS[4][2][2] = {
+        {{TJXOP_NONE,   TJXOP_VFLIP},      {TJXOP_HFLIP,      TJXOP_ROT180}},
+        {{TJXOP_ROT90,  TJXOP_TRANSPOSE},  {TJXOP_TRANSVERSE, TJXOP_ROT270}},
+        {{TJXOP_ROT180, TJXOP_HFLIP},      {TJXOP_VFLIP,      TJXOP_NONE}},
+        {{TJXOP_ROT270, TJXOP_TRANSVERSE}, {TJXOP_TRANSPOSE,  TJXOP_ROT90}}
+};
+
+static int getCombinedTransformOp(JpegTransformer *jpegTransformer) {
+    int rotationIndex = 0;
     if (jpegTransformer->rotation == 90) {
-        transform->op = TJXOP_ROT90;
+        rotationIndex = 1;
     } else if (jpegTransformer->rotation == 180) {
-        transform->op = TJXOP_ROT180;
+        rotationIndex = 2;
     } else if (jpegTransformer->rotation == 270) {
-        transform->op = TJXOP_ROT270;
+        rotationIndex = 3;
     }
 
+    return COMBINED_TRANSFORM_OPS[rotationIndex]
+                                 [jpegTransformer->flipHorizontal ? 1 : 0]
+                                 [jpegTransformer->flipVertical ? 1 : 0];
+}
+
+/**
+ * Runs the queued operations and points outputJpeg at the result. The result either aliases the
+ * stored input or this thread's scratch buffer, and stays valid until the next transform on the
+ * same thread.
+ */
+static void transformJpeg(JpegTransformer *jpegTransformer,
+                          unsigned char **outputJpeg, unsigned long *outputJpegSize) {
+    *outputJpeg = jpegTransformer->jpeg;
+    *outputJpegSize = jpegTransformer->jpegSize;
+
+    // Flips, rotation and crop are folded into a single transform so the DCT stream is only
+    // parsed and re-emitted once.
+    tjtransform transform;
+    memset(&transform, 0, sizeof(tjtransform));
+    transform.op = getCombinedTransformOp(jpegTransformer);
+
     if (jpegTransformer->cropWidth > 0) {
         tjregion cropRegion;
         cropRegion.x = jpegTransformer->cropLeft - (jpegTransformer->cropLeft % 16);
@@ -147,19 +254,97 @@ Java_com_wonderkiln_camerakit_JpegTransformer_jniCommit
         cropRegion.w = jpegTransformer->cropWidth;
         cropRegion.h = jpegTransformer->cropHeight;
 
-        transform->r = cropRegion;
-        transform->options = TJXOPT_CROP;
+        transform.r = cropRegion;
+        transform.options = TJXOPT_CROP;
+    }
+
+    if (transform.op == TJXOP_NONE && transform.options == 0) {
+        return;
     }
 
-    tjTransform(tjHandle, jpeg, jpegSize, 1, &jpeg, &jpegSize, transform, 0);
-    tjDestroy(tjHandle);
+    TurboJpegCache *cache = getTurboJpegCache();
+
+    // A lossless transform emits about as many bytes as it reads, so size the scratch buffer
+    // from the input and leave growing it to TurboJPEG for the rare case that isn't enough.
+    unsigned long expectedSize = jpegTransformer->jpegSize + (jpegTransformer->jpegSize >> 4);
+    if (cache->scratchBufferSize < expectedSize) {
+        if (cache->scratchBuffer != NULL) tjFree(cache->scratchBuffer);
+        cache->scratchBuffer = tjAlloc((int) expectedSize);
+        cache->scratchBufferSize = cache->scratchBuffer != NULL ? expectedSize : 0;
+    }
+
+    unsigned char *transformedJpeg = cache->scratchBuffer;
+    unsigned long transformedJpegSize = cache->scratchBufferSize;
+
+    int status = tjTransform(cache->tjHandle, jpegTransformer->jpeg, jpegTransformer->jpegSize, 1,
+                             &transformedJpeg, &transformedJpegSize, &transform, 0);
+
+    if (transformedJpeg != cache->scratchBuffer) {
+        // TurboJPEG outgrew the scratch buffer and moved to a larger allocation of its own. It
+        // doesn't free the buffer it was handed, so swap it out here.
+        if (cache->scratchBuffer != NULL) tjFree(cache->scratchBuffer);
+        cache->scratchBuffer = transformedJpeg;
+        cache->scratchBufferSize = status == 0 ? transformedJpegSize : 0;
+    }
+
+    if (status == 0) {
+        *outputJpeg = transformedJpeg;
+        *outputJpegSize = transformedJpegSize;
+    }
+}
+
+JNIEXPORT jbyteArray JNICALL
+Java_com_wonderkiln_camerakit_JpegTransformer_jniCommit
+        (JNIEnv *env, jobject obj, jobject handle) {
+    JpegTransformer *jpegTransformer = (JpegTransformer *) env->GetDirectBufferAddress(handle);
+
+    unsigned char *jpeg;
+    unsigned long jpegSize;
+    transformJpeg(jpegTransformer, &jpeg, &jpegSize);
 
     jbyteArray array = env->NewByteArray((jsize) jpegSize);
     env->SetByteArrayRegion(array, 0, (jsize) jpegSize, reinterpret_cast<jbyte *>(jpeg));
-
     return array;
 }
 
+JNIEXPORT jobject JNICALL
+Java_com_wonderkiln_camerakit_JpegTransformer_jniCommitBuffer
+        (JNIEnv *env, jobject obj, jobject handle) {
+    JpegTransformer *jpegTransformer = (JpegTransformer *) env->GetDirectBufferAddress(handle);
+
+    unsigned char *jpeg;
+    unsigned long jpegSize;
+    transformJpeg(jpegTransformer, &jpeg, &jpegSize);
+
+    jclass byteBufferClass = env->FindClass("java/nio/ByteBuffer");
+    jmethodID allocateDirect = env->GetStaticMethodID(byteBufferClass, "allocateDirect",
+                                                      "(I)Ljava/nio/ByteBuffer;");
+    jobject buffer = env->CallStaticObjectMethod(byteBufferClass, allocateDirect, (jint) jpegSize);
+    env->DeleteLocalRef(byteBufferClass);
+
+    if (buffer != NULL) {
+        unsigned char *bufferAddress = (unsigned char *) env->GetDirectBufferAddress(buffer);
+        memcpy(bufferAddress, jpeg, jpegSize);
+    }
+
+    return buffer;
+}
+
+JNIEXPORT void JNICALL
+Java_com_wonderkiln_camerakit_JpegTransformer_jniReleaseJpeg
+        (JNIEnv *env, jobject obj, jobject handle) {
+    JpegTransformer *jpegTransformer = (JpegTransformer *) env->GetDirectBufferAddress(handle);
+
+    if (jpegTransformer->jpegArray != NULL) {
+        env->ReleaseByteArrayElements(jpegTransformer->jpegArray,
+                                      (jbyte *) jpegTransformer->jpeg, JNI_ABORT);
+        env->DeleteGlobalRef(jpegTransformer->jpegArray);
+        jpegTransformer->jpegArray = NULL;
+    }
+
+    delete jpegTransformer;
+}
+
 JNIEXPORT jint JNICALL
 Java_com_wonderkiln_camerakit_JpegTransformer_jniGetWidth
         (JNIEnv *env, jobject obj, jobject handle) {
@@ -2,8 +2,12 @@
 #include <stdio.h>
 #include <android/bitmap.h>
 #include <cstring>
+#include <cstdlib>
 #include <unistd.h>
-#include <vector>
+#include <pthread.h>
+#include <setjmp.h>
+#include <jpeglib.h>
+#include <jerror.h>
 
 #define  LOG_TAG    "DEBUG"
 #define  LOGD(...)  __android_log_print(ANDROID_LOG_DEBUG,LOG_TAG,__VA_ARGS__)
@@ -31,6 +35,17 @@ Java_com_wonderkiln_camerakit_YuvOperator_jniGetYuvData(JNIEnv *env,
 JNIEXPORT void JNICALL
 Java_com_wonderkiln_camerakit_YuvOperator_jniFreeYuvData(JNIEnv *env, jobject obj,
                                                          jobject handle);
+JNIEXPORT jbyteArray JNICALL
+Java_com_wonderkiln_camerakit_YuvOperator_jniCompressToJpeg(JNIEnv *env, jclass clazz,
+                                                            jbyteArray nv21, jint width,
+                                                            jint height, jint rotation,
+                                                            jint quality);
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_YuvOperator_jniCropNv21(JNIEnv *env, jclass clazz,
+                                                      jbyteArray nv21, jint width, jint height,
+                                                      jint left, jint top, jint cropWidth,
+                                                      jint cropHeight, jint downscale,
+                                                      jbyteArray output);
 }
 
 class JniYuvOperator {
@@ -45,6 +60,546 @@ public:
     }
 };
 
+// Rotation works on square tiles so that both the rows being written and the columns being
+// read stay in cache, instead of striding through the whole source for every output byte.
+static const int TILE_SIZE = 32;
+
+// Frames smaller than this are rotated on the calling thread, the hand-off isn't worth it.
+static const int PARALLEL_MIN_PIXELS = 640 * 480;
+static const int MAX_WORKER_THREADS = 3;
+
+typedef void (*RowTask)(void *context, int rowBegin, int rowEnd);
+
+/**
+ * A few threads that split a range of output rows between them. The calling thread takes part
+ * as well. If another rotation is already using the pool the caller just does the work itself.
+ */
+class RotationPool {
+public:
+    RotationPool() : _workerCount(0), _generation(0), _activeWorkers(0), _task(NULL),
+                     _context(NULL), _rowCount(0), _rowsPerChunk(0), _nextRow(0) {
+        pthread_mutex_init(&_submitMutex, NULL);
+        pthread_mutex_init(&_mutex, NULL);
+        pthread_cond_init(&_workCond, NULL);
+        pthread_cond_init(&_doneCond, NULL);
+
+#ifdef ROTATION_POOL_WORKERS
+        // Host tests fix the worker count so the pool is exercised on any machine.
+        int workers = ROTATION_POOL_WORKERS;
+#else
+        long cpus = sysconf(_SC_NPROCESSORS_ONLN);
+        int workers = cpus > 1 ? (int) cpus - 1 : 0;
+        if (workers > MAX_WORKER_THREADS) workers = MAX_WORKER_THREADS;
+#endif
+
+        for (int i = 0; i < workers; i++) {
+            pthread_t thread;
+            if (pthread_create(&thread, NULL, workerMain, this) != 0) break;
+            pthread_detach(thread);
+            _workerCount++;
+        }
+    }
+
+    void run(RowTask task, void *context, int rowCount) {
+        if (_workerCount == 0 || pthread_mutex_trylock(&_submitMutex) != 0) {
+            task(context, 0, rowCount);
+            return;
+        }
+
+        int chunks = (_workerCount + 1) * 4;
+        int rowsPerChunk = (rowCount + chunks - 1) / chunks;
+        rowsPerChunk = (rowsPerChunk + TILE_SIZE - 1) / TILE_SIZE * TILE_SIZE;
+
+        pthread_mutex_lock(&_mutex);
+        _task = task;
+        _context = context;
+        _rowCount = rowCount;
+        _rowsPerChunk = rowsPerChunk;
+        _nextRow = 0;
+        _activeWorkers = _workerCount;
+        _generation++;
+        pthread_cond_broadcast(&_workCond);
+        pthread_mutex_unlock(&_mutex);
+
+        runChunks();
+
+        pthread_mutex_lock(&_mutex);
+        while (_activeWorkers > 0) {
+            pthread_cond_wait(&_doneCond, &_mutex);
+        }
+        _task = NULL;
+        pthread_mutex_unlock(&_mutex);
+
+        pthread_mutex_unlock(&_submitMutex);
+    }
+
+private:
+    int _workerCount;
+
+    pthread_mutex_t _submitMutex;
+    pthread_mutex_t _mutex;
+    pthread_cond_t _workCond;
+    pthread_cond_t _doneCond;
+    int _generation;
+    int _activeWorkers;
+
+    RowTask _task;
+    void *_context;
+    int _rowCount;
+    int _rowsPerChunk;
+    volatile int _nextRow;
+
+    void runChunks() {
+        while (true) {
+            int rowBegin = __sync_fetch_and_add(&_nextRow, _rowsPerChunk);
+            if (rowBegin >= _rowCount) break;
+
+            int rowEnd = rowBegin + _rowsPerChunk;
+            if (rowEnd > _rowCount) rowEnd = _rowCount;
+            _task(_context, rowBegin, rowEnd);
+        }
+    }
+
+    static void *workerMain(void *arg) {
+        RotationPool *pool = (RotationPool *) arg;
+        int seenGeneration = 0;
+
+        pthread_mutex_lock(&pool->_mutex);
+        while (true) {
+            while (pool->_generation == seenGeneration) {
+                pthread_cond_wait(&pool->_workCond, &pool->_mutex);
+            }
+            seenGeneration = pool->_generation;
+            pthread_mutex_unlock(&pool->_mutex);
+
+            pool->runChunks();
+
+            pthread_mutex_lock(&pool->_mutex);
+            if (--pool->_activeWorkers == 0) {
+                pthread_cond_signal(&pool->_doneCond);
+            }
+        }
+        return NULL;
+    }
+};
+
+static RotationPool *sRotationPool = NULL;
+static pthread_once_t sRotationPoolOnce = PTHREAD_ONCE_INIT;
+
+static void createRotationPool() {
+    sRotationPool = new RotationPool();
+}
+
+// One interleaved NV21 chroma sample.
+struct VuPair {
+    unsigned char v;
+    unsigned char u;
+};
+
+/**
+ * Writes rotated rows straight into a plane. firstRow is the destination row stored at the start
+ * of the buffer, which lets a caller hand over a buffer holding just a strip of the output.
+ */
+template<typename T>
+struct PlaneWriter {
+    T *dst;
+    int stride;
+    int firstRow;
+
+    struct Row {
+        T *out;
+
+        void put(const T &value) {
+            *out++ = value;
+        }
+    };
+
+    Row row(int y, int x) const {
+        Row row = {dst + (y - firstRow) * stride + x};
+        return row;
+    }
+};
+
+/**
+ * Splits rotated VU pairs into separate U and V planes, which is the layout a JPEG encoder wants.
+ */
+struct ChromaPlanesWriter {
+    unsigned char *u;
+    unsigned char *v;
+    int stride;
+    int firstRow;
+
+    struct Row {
+        unsigned char *u;
+        unsigned char *v;
+
+        void put(const VuPair &value) {
+            *u++ = value.u;
+            *v++ = value.v;
+        }
+    };
+
+    Row row(int y, int x) const {
+        int offset = (y - firstRow) * stride + x;
+        Row row = {u + offset, v + offset};
+        return row;
+    }
+};
+
+/**
+ * Rotates rows [rowBegin, rowEnd) of the destination plane clockwise by 0, 90, 180 or 270
+ * degrees. T is unsigned char for the Y plane and VuPair for the chroma plane, so both planes
+ * share one kernel.
+ */
+template<typename T, typename Writer>
+static void rotatePlane(const T *src, int srcWidth, int srcHeight, const Writer &writer,
+                        int rotation, int rowBegin, int rowEnd) {
+    int dstWidth = rotation == 90 || rotation == 270 ? srcHeight : srcWidth;
+
+    for (int tileY = rowBegin; tileY < rowEnd; tileY += TILE_SIZE) {
+        int tileYEnd = tileY + TILE_SIZE < rowEnd ? tileY + TILE_SIZE : rowEnd;
+
+        for (int tileX = 0; tileX < dstWidth; tileX += TILE_SIZE) {
+            int tileXEnd = tileX + TILE_SIZE < dstWidth ? tileX + TILE_SIZE : dstWidth;
+
+            for (int y = tileY; y < tileYEnd; y++) {
+                typename Writer::Row out = writer.row(y, tileX);
+                const T *in;
+                int step;
+
+                if (rotation == 90) {
+                    // dst(x, y) = src(y, srcHeight - 1 - x)
+                    in = src + (srcHeight - 1 - tileX) * srcWidth + y;
+                    step = -srcWidth;
+                } else if (rotation == 270) {
+                    // dst(x, y) = src(srcWidth - 1 - y, x)
+                    in = src + tileX * srcWidth + (srcWidth - 1 - y);
+                    step = srcWidth;
+                } else if (rotation == 180) {
+                    // dst(x, y) = src(srcWidth - 1 - x, srcHeight - 1 - y)
+                    in = src + (srcHeight - 1 - y) * srcWidth + (srcWidth - 1 - tileX);
+                    step = -1;
+                } else {
+                    in = src + y * srcWidth + tileX;
+                    step = 1;
+                }
+
+                for (int x = tileX; x < tileXEnd; x++) {
+                    out.put(*in);
+                    in += step;
+                }
+            }
+        }
+    }
+}
+
+template<typename T, typename Writer>
+struct PlaneRotation {
+    const T *src;
+    int srcWidth;
+    int srcHeight;
+    Writer writer;
+    int rotation;
+
+    static void run(void *context, int rowBegin, int rowEnd) {
+        PlaneRotation<T, Writer> *r = (PlaneRotation<T, Writer> *) context;
+        rotatePlane(r->src, r->srcWidth, r->srcHeight, r->writer, r->rotation, rowBegin, rowEnd);
+    }
+};
+
+template<typename T, typename Writer>
+static void rotatePlane(const T *src, int srcWidth, int srcHeight, const Writer &writer,
+                        int rotation, bool parallel) {
+    int dstHeight = rotation == 90 || rotation == 270 ? srcWidth : srcHeight;
+    if (!parallel) {
+        rotatePlane(src, srcWidth, srcHeight, writer, rotation, 0, dstHeight);
+        return;
+    }
+
+    PlaneRotation<T, Writer> context = {src, srcWidth, srcHeight, writer, rotation};
+    pthread_once(&sRotationPoolOnce, createRotationPool);
+    sRotationPool->run(PlaneRotation<T, Writer>::run, &context, dstHeight);
+}
+
+/**
+ * Rotates the stored NV21 frame clockwise into a new buffer, reading straight from the stored
+ * data instead of copying it first. NV21 frames always have even dimensions, so the VU plane is
+ * (width / 2) x (height / 2) pairs.
+ */
+static void rotateYuv(JniYuvOperator *yuvOperator, int rotation) {
+    unsigned char *yuv = yuvOperator->_storedYuvData;
+    int width = yuvOperator->_width;
+    int height = yuvOperator->_height;
+    int length = yuvOperator->_length;
+    int wh = width * height;
+
+    if (yuv == NULL || length < wh + wh / 2) return;
+
+    unsigned char *rotated = new unsigned char[length];
+    bool parallel = wh >= PARALLEL_MIN_PIXELS;
+
+    int dstWidth = rotation == 180 ? width : height;
+    PlaneWriter<unsigned char> yWriter = {rotated, dstWidth, 0};
+    PlaneWriter<VuPair> vuWriter = {(VuPair *) (rotated + wh), dstWidth / 2, 0};
+
+    rotatePlane(yuv, width, height, yWriter, rotation, parallel);
+    rotatePlane((const VuPair *) (yuv + wh), width / 2, height / 2, vuWriter, rotation, parallel);
+
+    // Camera buffers can be padded past the end of the chroma plane.
+    int tail = wh + wh / 2;
+    if (length > tail) {
+        memcpy(rotated + tail, yuv + tail, (size_t) (length - tail));
+    }
+
+    delete[] yuv;
+    yuvOperator->_storedYuvData = rotated;
+    if (rotation != 180) {
+        yuvOperator->_width = height;
+        yuvOperator->_height = width;
+    }
+}
+
+struct JpegErrorManager {
+    jpeg_error_mgr pub;
+    jmp_buf setjmpBuffer;
+};
+
+static void onJpegError(j_common_ptr cinfo) {
+    JpegErrorManager *errorManager = (JpegErrorManager *) cinfo->err;
+    longjmp(errorManager->setjmpBuffer, 1);
+}
+
+/**
+ * Collects the compressed stream in a buffer that doubles whenever libjpeg fills it. The bundled
+ * headers predate jpeg_mem_dest().
+ */
+struct JpegMemoryDestination {
+    jpeg_destination_mgr pub;
+    JOCTET *buffer;
+    size_t capacity;
+    size_t size;
+};
+
+static void initJpegDestination(j_compress_ptr cinfo) {
+    JpegMemoryDestination *dest = (JpegMemoryDestination *) cinfo->dest;
+    dest->pub.next_output_byte = dest->buffer;
+    dest->pub.free_in_buffer = dest->capacity;
+}
+
+static boolean emptyJpegDestination(j_compress_ptr cinfo) {
+    JpegMemoryDestination *dest = (JpegMemoryDestination *) cinfo->dest;
+    size_t capacity = dest->capacity * 2;
+    JOCTET *buffer = (JOCTET *) realloc(dest->buffer, capacity);
+    if (buffer == NULL) ERREXIT1(cinfo, JERR_OUT_OF_MEMORY, 0);
+
+    dest->buffer = buffer;
+    dest->pub.next_output_byte = buffer + dest->capacity;
+    dest->pub.free_in_buffer = capacity - dest->capacity;
+    dest->capacity = capacity;
+    return TRUE;
+}
+
+static void termJpegDestination(j_compress_ptr cinfo) {
+    JpegMemoryDestination *dest = (JpegMemoryDestination *) cinfo->dest;
+    dest->size = dest->capacity - dest->pub.free_in_buffer;
+}
+
+// Fills the columns past the image edge with the last real sample so the encoder sees complete
+// 8x8 blocks without a hard edge in them.
+static void padRows(unsigned char *rows, int rowCount, int width, int stride) {
+    for (int i = 0; i < rowCount; i++) {
+        unsigned char *row = rows + i * stride;
+        memset(row + width, row[width - 1], (size_t) (stride - width));
+    }
+}
+
+/**
+ * Encodes an NV21 frame as a 4:2:0 JPEG, rotating it clockwise as it goes. Each iMCU row of the
+ * output (16 luma rows) is rotated out of the frame into a small strip buffer and handed
+ * straight to libjpeg as raw YCbCr, so the full frame is never copied or converted to RGB.
+ */
+static bool compressNv21ToJpeg(const unsigned char *nv21, int width, int height, int rotation,
+                               int quality, unsigned char **jpeg, size_t *jpegSize) {
+    int dstWidth = rotation == 90 || rotation == 270 ? height : width;
+    int dstHeight = rotation == 90 || rotation == 270 ? width : height;
+    int chromaWidth = dstWidth / 2;
+    int chromaHeight = dstHeight / 2;
+
+    // Raw data input has to cover whole blocks, 16 luma and 8 chroma samples wide.
+    int yStride = (dstWidth + 15) & ~15;
+    int chromaStride = yStride / 2;
+
+    unsigned char *yStrip = new unsigned char[16 * yStride];
+    unsigned char *uStrip = new unsigned char[8 * chromaStride];
+    unsigned char *vStrip = new unsigned char[8 * chromaStride];
+
+    JpegMemoryDestination dest;
+    dest.capacity = (size_t) (dstWidth * dstHeight / 4 + 4096);
+    dest.buffer = (JOCTET *) malloc(dest.capacity);
+    dest.size = 0;
+    dest.pub.init_destination = initJpegDestination;
+    dest.pub.empty_output_buffer = emptyJpegDestination;
+    dest.pub.term_destination = termJpegDestination;
+
+    jpeg_compress_struct cinfo;
+    memset(&cinfo, 0, sizeof(cinfo));
+    JpegErrorManager errorManager;
+    cinfo.err = jpeg_std_error(&errorManager.pub);
+    errorManager.pub.error_exit = onJpegError;
+
+    bool success = false;
+    if (dest.buffer != NULL && setjmp(errorManager.setjmpBuffer) == 0) {
+        jpeg_create_compress(&cinfo);
+        cinfo.dest = &dest.pub;
+
+        cinfo.image_width = (JDIMENSION) dstWidth;
+        cinfo.image_height = (JDIMENSION) dstHeight;
+        cinfo.input_components = 3;
+        cinfo.in_color_space = JCS_YCbCr;
+        jpeg_set_defaults(&cinfo);
+        jpeg_set_colorspace(&cinfo, JCS_YCbCr);
+        jpeg_set_quality(&cinfo, quality, TRUE);
+
+        cinfo.raw_data_in = TRUE;
+        cinfo.comp_info[0].h_samp_factor = 2;
+        cinfo.comp_info[0].v_samp_factor = 2;
+        cinfo.comp_info[1].h_samp_factor = 1;
+        cinfo.comp_info[1].v_samp_factor = 1;
+        cinfo.comp_info[2].h_samp_factor = 1;
+        cinfo.comp_info[2].v_samp_factor = 1;
+
+        jpeg_start_compress(&cinfo, TRUE);
+
+        JSAMPROW yRows[16];
+        JSAMPROW uRows[8];
+        JSAMPROW vRows[8];
+        JSAMPARRAY planes[3] = {yRows, uRows, vRows};
+        const VuPair *vu = (const VuPair *) (nv21 + width * height);
+
+        for (int row = 0; row < dstHeight; row += 16) {
+            int yCount = dstHeight - row < 16 ? dstHeight - row : 16;
+            int chromaRow = row / 2;
+            int chromaCount = chromaHeight - chromaRow < 8 ? chromaHeight - chromaRow : 8;
+
+            PlaneWriter<unsigned char> yWriter = {yStrip, yStride, row};
+            ChromaPlanesWriter chromaWriter = {uStrip, vStrip, chromaStride, chromaRow};
+            rotatePlane(nv21, width, height, yWriter, rotation, row, row + yCount);
+            rotatePlane(vu, width / 2, height / 2, chromaWriter, rotation,
+                        chromaRow, chromaRow + chromaCount);
+
+            padRows(yStrip, yCount, dstWidth, yStride);
+            padRows(uStrip, chromaCount, chromaWidth, chromaStride);
+            padRows(vStrip, chromaCount, chromaWidth, chromaStride);
+
+            // The last strip repeats its bottom row to fill out the iMCU.
+            for (int i = 0; i < 16; i++) {
+                yRows[i] = yStrip + (i < yCount ? i : yCount - 1) * yStride;
+            }
+            for (int i = 0; i < 8; i++) {
+                int chromaIndex = i < chromaCount ? i : chromaCount - 1;
+                uRows[i] = uStrip + chromaIndex * chromaStride;
+                vRows[i] = vStrip + chromaIndex * chromaStride;
+            }
+
+            jpeg_write_raw_data(&cinfo, planes, 16);
+        }
+
+        jpeg_finish_compress(&cinfo);
+        success = true;
+    }
+
+    jpeg_destroy_compress(&cinfo);
+    delete[] yStrip;
+    delete[] uStrip;
+    delete[] vStrip;
+
+    if (!success) {
+        free(dest.buffer);
+        return false;
+    }
+
+    *jpeg = dest.buffer;
+    *jpegSize = dest.size;
+    return true;
+}
+
+/**
+ * Copies a dstWidth x dstHeight block of samples out of a plane, averaging each scale x scale
+ * square of source samples into one. Channels is 1 for the Y plane and 2 for the interleaved VU
+ * plane, whose bytes are averaged separately.
+ */
+template<int Channels>
+static void cropPlane(const unsigned char *src, int srcStride, unsigned char *dst,
+                      int dstWidth, int dstHeight, int scale) {
+    int rowBytes = dstWidth * Channels;
+    if (scale == 1) {
+        for (int y = 0; y < dstHeight; y++) {
+            memcpy(dst + y * rowBytes, src + y * srcStride, (size_t) rowBytes);
+        }
+        return;
+    }
+
+    int area = scale * scale;
+    for (int y = 0; y < dstHeight; y++) {
+        const unsigned char *srcRow = src + y * scale * srcStride;
+        unsigned char *dstRow = dst + y * rowBytes;
+        for (int x = 0; x < dstWidth; x++) {
+            for (int c = 0; c < Channels; c++) {
+                const unsigned char *sample = srcRow + x * scale * Channels + c;
+                int sum = 0;
+                for (int j = 0; j < scale; j++) {
+                    for (int i = 0; i < scale; i++) {
+                        sum += sample[j * srcStride + i * Channels];
+                    }
+                }
+                dstRow[x * Channels + c] = (unsigned char) ((sum + area / 2) / area);
+            }
+        }
+    }
+}
+
+/**
+ * Crops an NV21 frame to the given rectangle and shrinks it by an integer factor in one pass.
+ * The rectangle's position must be even and its size a multiple of 2 * scale so the output is
+ * still a valid NV21 frame, which the caller checks.
+ */
+static void cropNv21(const unsigned char *nv21, int width, int height, int left, int top,
+                     int cropWidth, int cropHeight, int scale, unsigned char *output) {
+    int dstWidth = cropWidth / scale;
+    int dstHeight = cropHeight / scale;
+    int wh = width * height;
+
+    cropPlane<1>(nv21 + top * width + left, width, output, dstWidth, dstHeight, scale);
+    cropPlane<2>(nv21 + wh + (top / 2) * width + left, width, output + dstWidth * dstHeight,
+                 dstWidth / 2, dstHeight / 2, scale);
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_wonderkiln_camerakit_YuvOperator_jniCropNv21(JNIEnv *env, jclass clazz,
+                                                      jbyteArray nv21, jint width, jint height,
+                                                      jint left, jint top, jint cropWidth,
+                                                      jint cropHeight, jint downscale,
+                                                      jbyteArray output) {
+    if (env->GetArrayLength(nv21) < width * height + width * height / 2) return JNI_FALSE;
+    int outputSize = (cropWidth / downscale) * (cropHeight / downscale);
+    if (env->GetArrayLength(output) < outputSize + outputSize / 2) return JNI_FALSE;
+
+    // The copy is short and makes no JNI calls, so pin both arrays rather than copying them.
+    unsigned char *src = (unsigned char *) env->GetPrimitiveArrayCritical(nv21, NULL);
+    if (src == NULL) return JNI_FALSE;
+    unsigned char *dst = (unsigned char *) env->GetPrimitiveArrayCritical(output, NULL);
+    if (dst == NULL) {
+        env->ReleasePrimitiveArrayCritical(nv21, src, JNI_ABORT);
+        return JNI_FALSE;
+    }
+
+    cropNv21(src, width, height, left, top, cropWidth, cropHeight, downscale, dst);
+
+    env->ReleasePrimitiveArrayCritical(output, dst, 0);
+    env->ReleasePrimitiveArrayCritical(nv21, src, JNI_ABORT);
+    return JNI_TRUE;
+}
+
 JNIEXPORT jobject JNICALL
 Java_com_wonderkiln_camerakit_YuvOperator_jniStoreYuvData(JNIEnv *env, jobject obj,
                                                           jbyteArray yuv420sp, jint width,
@@ -65,86 +620,21 @@ JNIEXPORT void JNICALL
 Java_com_wonderkiln_camerakit_YuvOperator_jniRotateYuvCcw90(JNIEnv *env, jobject obj,
                                                             jobject handle) {
     JniYuvOperator *yuvOperator = (JniYuvOperator *) env->GetDirectBufferAddress(handle);
-    unsigned char *yuv = yuvOperator->_storedYuvData;
-    int width = yuvOperator->_width;
-    int height = yuvOperator->_height;
-    int length = yuvOperator->_length;
-
-    std::vector<unsigned char> yuvCopy(yuv, yuv + length);
-
-    int n = 0;
-    int uvHeight = height >> 1;
-    int wh = width * height;
-    for (int j = width - 1; j >= 0; j--) {
-        for (int i = 0; i < height; i++) {
-            yuv[n++] = yuvCopy[width * i + j];
-        }
-    }
-
-    for (int j = width - 1; j > 0; j -= 2) {
-        for (int i = 0; i < uvHeight; i++) {
-            yuv[n++] = yuvCopy[wh + width * i + j - 1];
-            yuv[n++] = yuvCopy[wh + width * i + j];
-        }
-    }
+    rotateYuv(yuvOperator, 270);
 }
 
 JNIEXPORT void JNICALL
 Java_com_wonderkiln_camerakit_YuvOperator_jniRotateYuvCw90(JNIEnv *env, jobject obj,
                                                            jobject handle) {
     JniYuvOperator *yuvOperator = (JniYuvOperator *) env->GetDirectBufferAddress(handle);
-    unsigned char *yuv = yuvOperator->_storedYuvData;
-    int width = yuvOperator->_width;
-    int height = yuvOperator->_height;
-    int length = yuvOperator->_length;
-
-
-    std::vector<unsigned char> yuvCopy(yuv, yuv + length);
-
-    int wh = width * height;
-    int k = 0;
-    for (int i = 0; i < width; i++) {
-        for (int j = height - 1; j >= 0; j--) {
-            yuv[k] = yuvCopy[width * j + i];
-            k++;
-        }
-    }
-    for (int i = 0; i < width; i += 2) {
-        for (int j = height / 2 - 1; j >= 0; j--) {
-            yuv[k] = yuvCopy[wh + width * j + i];
-            yuv[k + 1] = yuvCopy[wh + width * j + i + 1];
-            k += 2;
-        }
-    }
+    rotateYuv(yuvOperator, 90);
 }
 
 JNIEXPORT void JNICALL
 Java_com_wonderkiln_camerakit_YuvOperator_jniRotateYuv180(JNIEnv *env, jobject obj,
                                                           jobject handle) {
     JniYuvOperator *yuvOperator = (JniYuvOperator *) env->GetDirectBufferAddress(handle);
-    unsigned char *yuv = yuvOperator->_storedYuvData;
-    int width = yuvOperator->_width;
-    int height = yuvOperator->_height;
-    int length = yuvOperator->_length;
-
-    std::vector<unsigned char> yuvCopy(yuv, yuv + length);
-
-    int n = 0;
-    int uh = height >> 1;
-    int wh = width * height;
-    for (int j = height - 1; j >= 0; j--) {
-        for (int i = width - 1; i >= 0; i--) {
-            yuv[n++] = yuvCopy[width * j + i];
-        }
-    }
-
-    for (int j = uh - 1; j >= 0; j--) {
-        for (int i = width - 1; i > 0; i -= 2) {
-            yuv[n] = yuvCopy[wh + width * j + i - 1];
-            yuv[n + 1] = yuvCopy[wh + width * j + i];
-            n += 2;
-        }
-    }
+    rotateYuv(yuvOperator, 180);
 }
 
 JNIEXPORT jobject JNICALL
@@ -168,3 +658,29 @@ Java_com_wonderkiln_camerakit_YuvOperator_jniFreeYuvData(JNIEnv *env, jobject ob
     yuvOperator->_storedYuvData = NULL;
     delete yuvOperator;
 }
+
+JNIEXPORT jbyteArray JNICALL
+Java_com_wonderkiln_camerakit_YuvOperator_jniCompressToJpeg(JNIEnv *env, jclass clazz,
+                                                            jbyteArray nv21, jint width,
+                                                            jint height, jint rotation,
+                                                            jint quality) {
+    if (width <= 0 || height <= 0 || (width & 1) || (height & 1)) return NULL;
+    if (env->GetArrayLength(nv21) < width * height + width * height / 2) return NULL;
+
+    jbyte *yuv = env->GetByteArrayElements(nv21, NULL);
+    if (yuv == NULL) return NULL;
+
+    unsigned char *jpeg = NULL;
+    size_t jpegSize = 0;
+    bool compressed = compressNv21ToJpeg((const unsigned char *) yuv, width, height, rotation,
+                                         quality, &jpeg, &jpegSize);
+    env->ReleaseByteArrayElements(nv21, yuv, JNI_ABORT);
+    if (!compressed) return NULL;
+
+    jbyteArray array = env->NewByteArray((jsize) jpegSize);
+    if (array != NULL) {
+        env->SetByteArrayRegion(array, 0, (jsize) jpegSize, reinterpret_cast<jbyte *>(jpeg));
+    }
+    free(jpeg);
+    return array;
+}
@@ -19,6 +19,8 @@ public class CameraKitEvent {
     public static final String TYPE_FOCUS_MOVED = "CKFocusMovedEvent";
 
     public static final String TYPE_TEXT_DETECTED = "CKTextDetectedEvent";
+    public static final String TYPE_TEXT_DETECTIONS = "CKTextDetectionsEvent";
+    public static final String TYPE_TEXT_CHANGED = "CKTextChangedEvent";
 
     private String type;
     private String message;
@@ -0,0 +1,10 @@
+package com.wonderkiln.camerakit;
+
+/**
+ * Delivers events to the {@link OnCameraKitEvent} methods of one class. camerakit-compiler
+ * generates one per class as {@code <Class>_CameraKitBinder}; classes it didn't process are
+ * bound through reflection instead.
+ */
+public interface CameraKitEventBinder<T> {
+    void dispatchEvent(T target, CameraKitEvent event);
+}
@@ -6,16 +6,39 @@ import android.graphics.BitmapFactory;
 public class CameraKitImage extends CameraKitEvent {
 
     private byte[] jpeg;
+    private int burstIndex;
+    private long timestamp;
 
     CameraKitImage(byte[] jpeg) {
+        this(jpeg, -1, 0);
+    }
+
+    CameraKitImage(byte[] jpeg, int burstIndex, long timestamp) {
         super(TYPE_IMAGE_CAPTURED);
         this.jpeg = jpeg;
+        this.burstIndex = burstIndex;
+        this.timestamp = timestamp;
     }
 
     public byte[] getJpeg() {
         return jpeg;
     }
 
+    /**
+     * Position of this image within a burst, or -1 if it was captured on its own.
+     */
+    public int getBurstIndex() {
+        return burstIndex;
+    }
+
+    /**
+     * {@link android.os.SystemClock#elapsedRealtime()} at the moment of capture for burst images,
+     * 0 otherwise.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
     public Bitmap getBitmap() {
         return BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
     }
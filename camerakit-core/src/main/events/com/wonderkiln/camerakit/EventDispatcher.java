@@ -1,117 +1,517 @@
 package com.wonderkiln.camerakit;
 
+import android.annotation.TargetApi;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Message;
 import android.support.annotation.NonNull;
+import android.util.Log;
+import android.view.Choreographer;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Delivers events to listeners and bindings. Each registration picks where it is called: on the
+ * main thread, immediately on whichever thread produced the event, or on an {@link Executor},
+ * and may accept only some event types. Events nobody on the main thread wants are never posted
+ * there.
+ * <p/>
+ * Registrations are kept in a copy-on-write array: adding or removing one swaps in a new array
+ * under a lock, while dispatch reads the current array without locking, so listeners can come
+ * and go from any thread, including from inside a callback. Bindings are only referenced weakly
+ * and are dropped once collected, so a bound Activity that is never unbound still doesn't leak.
+ * <p/>
+ * Frequent events whose latest value is all that matters, like focus moves, can be coalesced on
+ * their way to the main thread: only the newest pending event of each such type is kept, and
+ * they are delivered together once per display frame.
+ */
 class EventDispatcher {
 
-    private Handler mainThreadHandler;
+    private static final String TAG = EventDispatcher.class.getSimpleName();
 
-    private List<CameraKitEventListener> listeners;
-    private List<BindingHandler> bindings;
+    private static final int MSG_DISPATCH = 1;
+    private static final int MSG_SCHEDULE_FRAME = 2;
+    private static final int MSG_DELIVER_COALESCED = 3;
+
+    // Stands in for the display frame where Choreographer isn't available.
+    private static final long FALLBACK_FRAME_MILLIS = 16;
+
+    private static final Registration[] NO_REGISTRATIONS = new Registration[0];
+
+    private final Handler mainThreadHandler;
+
+    private final Object lock = new Object();
+    private volatile Registration[] registrations = NO_REGISTRATIONS;
+
+    // Copy-on-write like the registrations.
+    private volatile Set<String> coalescedTypes = Collections.emptySet();
+
+    // Newest event of each coalesced type waiting for the next frame, guarded by itself.
+    private final Map<String, CameraKitEvent> pendingEvents = new LinkedHashMap<>();
+    private boolean frameScheduled;
+    private Object frameCallback;
+
+    private final AtomicLong coalescedEventCount = new AtomicLong();
+    private final AtomicLong deliveredEventCount = new AtomicLong();
 
     public EventDispatcher() {
-        this.mainThreadHandler = new Handler(Looper.getMainLooper());
-        this.listeners = new ArrayList<>();
-        this.bindings = new ArrayList<>();
+        this.mainThreadHandler = new Handler(Looper.getMainLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message message) {
+                switch (message.what) {
+                    case MSG_DISPATCH:
+                        deliverOnMainThread((CameraKitEvent) message.obj);
+                        return true;
+
+                    case MSG_SCHEDULE_FRAME:
+                        scheduleFrame();
+                        return true;
+
+                    case MSG_DELIVER_COALESCED:
+                        deliverCoalesced();
+                        return true;
+                }
+                return false;
+            }
+        });
+
+        setCoalescing(CameraKitEvent.TYPE_FOCUS_MOVED, true);
+        setCoalescing(CameraKitEvent.TYPE_TEXT_DETECTIONS, true);
+    }
+
+    /**
+     * Whether main thread deliveries of {@code eventType}, a {@link CameraKitEvent#getType()},
+     * are coalesced to the newest event once per frame. Only suits events that describe current
+     * state; focus moves and per-frame text detections are coalesced by default.
+     */
+    public void setCoalescing(String eventType, boolean coalesce) {
+        synchronized (lock) {
+            Set<String> updated = new HashSet<>(coalescedTypes);
+            if (coalesce) {
+                updated.add(eventType);
+            } else {
+                updated.remove(eventType);
+            }
+            coalescedTypes = updated;
+        }
+    }
+
+    public boolean isCoalescing(String eventType) {
+        return coalescedTypes.contains(eventType);
+    }
+
+    /**
+     * Number of events replaced by a newer event of the same type before they reached the main
+     * thread.
+     */
+    public long getCoalescedEventCount() {
+        return coalescedEventCount.get();
+    }
+
+    /**
+     * Number of events handed to main thread listeners, coalesced or not.
+     */
+    public long getDeliveredEventCount() {
+        return deliveredEventCount.get();
     }
 
     public void addListener(CameraKitEventListener listener) {
-        this.listeners.add(listener);
+        addListener(listener, CameraKit.Constants.DELIVERY_MAIN_THREAD, null);
+    }
+
+    /**
+     * Registers a listener, or changes how it is delivered to if it's already registered.
+     * Listeners are held strongly until {@link #remove(Object) removed}.
+     *
+     * @param eventTypes the events to deliver, subclasses included; every event if null or empty
+     */
+    public void addListener(CameraKitEventListener listener, @EventDelivery int delivery, Class<?>[] eventTypes) {
+        add(new ListenerRegistration(listener, delivery, null, eventTypes));
+    }
+
+    public void addListener(CameraKitEventListener listener, @NonNull Executor executor, Class<?>[] eventTypes) {
+        add(new ListenerRegistration(listener, CameraKit.Constants.DELIVERY_MAIN_THREAD, executor, eventTypes));
     }
 
     public void addBinding(Object binding) {
-        this.bindings.add(new BindingHandler(binding));
+        addBinding(binding, CameraKit.Constants.DELIVERY_MAIN_THREAD, null);
+    }
+
+    /**
+     * Binds the {@link OnCameraKitEvent} methods of {@code binding}, or changes how they are
+     * delivered to if it's already bound. Only a weak reference is kept.
+     */
+    public void addBinding(Object binding, @EventDelivery int delivery, Class<?>[] eventTypes) {
+        add(new BindingRegistration(binding, delivery, null, eventTypes));
+    }
+
+    public void addBinding(Object binding, @NonNull Executor executor, Class<?>[] eventTypes) {
+        add(new BindingRegistration(binding, CameraKit.Constants.DELIVERY_MAIN_THREAD, executor, eventTypes));
+    }
+
+    /**
+     * Removes a listener or binding.
+     */
+    public void remove(Object target) {
+        synchronized (lock) {
+            removeRegistrations(target);
+        }
     }
 
     public void dispatch(final CameraKitEvent event) {
-        mainThreadHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                for (CameraKitEventListener listener : listeners) {
-                    listener.onEvent(event);
-                    if (event instanceof CameraKitError) listener.onError((CameraKitError) event);
-                    if (event instanceof CameraKitImage) listener.onImage((CameraKitImage) event);
-                    if (event instanceof CameraKitVideo) listener.onVideo((CameraKitVideo) event);
-                }
+        boolean postToMainThread = false;
+        for (final Registration registration : registrations) {
+            if (!registration.accepts(event)) {
+                continue;
+            }
 
-                for (BindingHandler handler : bindings) {
-                    try {
-                        handler.dispatchEvent(event);
-                    } catch (Exception e) {
-                        e.printStackTrace();
+            if (registration.executor != null) {
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(registration, event);
                     }
-                }
+                });
+            } else if (registration.delivery == CameraKit.Constants.DELIVERY_IMMEDIATE) {
+                deliver(registration, event);
+            } else {
+                postToMainThread = true;
             }
-        });
+        }
+
+        if (postToMainThread) {
+            if (coalescedTypes.contains(event.getType())) {
+                coalesce(event);
+            } else {
+                // Messages come from the framework's pool and are recycled after delivery, so
+                // unlike posting a Runnable this doesn't allocate for every event.
+                mainThreadHandler.obtainMessage(MSG_DISPATCH, event).sendToTarget();
+            }
+        }
     }
 
-    private class BindingHandler {
+    private void coalesce(CameraKitEvent event) {
+        synchronized (pendingEvents) {
+            if (pendingEvents.put(event.getType(), event) != null) {
+                coalescedEventCount.incrementAndGet();
+            }
 
-        private Map<Class, List<MethodHolder>> methods;
+            if (!frameScheduled) {
+                frameScheduled = true;
+                // Choreographer has to be used from the main thread.
+                mainThreadHandler.obtainMessage(MSG_SCHEDULE_FRAME).sendToTarget();
+            }
+        }
+    }
 
-        public BindingHandler(@NonNull Object binding) {
-            this.methods = new HashMap<>();
+    private void scheduleFrame() {
+        if (Build.VERSION.SDK_INT >= 16) {
+            if (frameCallback == null) {
+                frameCallback = new CoalescedFrameCallback();
+            }
+            Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) frameCallback);
+        } else {
+            mainThreadHandler.sendMessageDelayed(mainThreadHandler.obtainMessage(MSG_DELIVER_COALESCED), FALLBACK_FRAME_MILLIS);
+        }
+    }
 
-            for (Method method : binding.getClass().getDeclaredMethods()) {
-                if (method.isAnnotationPresent(OnCameraKitEvent.class)) {
-                    OnCameraKitEvent annotation = method.getAnnotation(OnCameraKitEvent.class);
-                    Class<? extends CameraKitEvent> eventType = annotation.value();
-                    addMethod(binding, method, eventType, methods);
-                }
+    private void deliverCoalesced() {
+        CameraKitEvent[] events;
+        synchronized (pendingEvents) {
+            events = pendingEvents.values().toArray(new CameraKitEvent[pendingEvents.size()]);
+            pendingEvents.clear();
+            frameScheduled = false;
+        }
+
+        for (CameraKitEvent event : events) {
+            deliverOnMainThread(event);
+        }
+    }
+
+    private void deliverOnMainThread(CameraKitEvent event) {
+        deliveredEventCount.incrementAndGet();
+        for (Registration registration : registrations) {
+            if (registration.isOnMainThread() && registration.accepts(event)) {
+                deliver(registration, event);
             }
         }
+    }
 
-        private void addMethod(Object binding, Method method, Class<? extends CameraKitEvent> type, Map<Class, List<MethodHolder>> store) {
-            if (!store.containsKey(type)) {
-                store.put(type, new ArrayList<MethodHolder>());
+    private void deliver(Registration registration, CameraKitEvent event) {
+        if (!registration.deliver(event)) {
+            // The binding was collected.
+            synchronized (lock) {
+                removeRegistrations(null);
             }
+        }
+    }
+
+    private void add(Registration registration) {
+        synchronized (lock) {
+            removeRegistrations(registration.getTarget());
+
+            Registration[] current = registrations;
+            Registration[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = registration;
+            registrations = updated;
+        }
+    }
 
-            store.get(type).add(new MethodHolder(binding, method));
+    /**
+     * Drops the registration for {@code target}, or every collected binding when it's null.
+     * Must hold the lock.
+     */
+    private void removeRegistrations(Object target) {
+        Registration[] current = registrations;
+        List<Registration> kept = new ArrayList<>(current.length);
+        for (Registration registration : current) {
+            Object registered = registration.getTarget();
+            if (registered != null && registered != target) {
+                kept.add(registration);
+            }
         }
 
-        public void dispatchEvent(@NonNull CameraKitEvent event) throws IllegalAccessException, InvocationTargetException {
-            List<MethodHolder> baseMethods = methods.get(CameraKitEvent.class);
-            if (baseMethods != null) {
-                for (MethodHolder methodHolder : baseMethods) {
-                    methodHolder.getMethod().invoke(methodHolder.getBinding(), event);
-                }
+        if (kept.size() != current.length) {
+            registrations = kept.toArray(new Registration[kept.size()]);
+        }
+    }
+
+    @TargetApi(16)
+    private class CoalescedFrameCallback implements Choreographer.FrameCallback {
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            deliverCoalesced();
+        }
+
+    }
+
+    private abstract static class Registration {
+
+        final int delivery;
+        final Executor executor;
+        final Class<?>[] eventTypes;
+
+        Registration(int delivery, Executor executor, Class<?>[] eventTypes) {
+            this.delivery = delivery;
+            this.executor = executor;
+            this.eventTypes = eventTypes != null ? eventTypes.clone() : null;
+        }
+
+        boolean isOnMainThread() {
+            return executor == null && delivery == CameraKit.Constants.DELIVERY_MAIN_THREAD;
+        }
+
+        boolean accepts(CameraKitEvent event) {
+            if (eventTypes == null || eventTypes.length == 0) {
+                return true;
             }
 
-            List<MethodHolder> targetMethods = methods.get(event.getClass());
-            if (targetMethods != null) {
-                for (MethodHolder methodHolder : targetMethods) {
-                    methodHolder.getMethod().invoke(methodHolder.getBinding(), event);
+            for (Class<?> eventType : eventTypes) {
+                if (eventType.isInstance(event)) {
+                    return true;
                 }
             }
+            return false;
+        }
+
+        /**
+         * The registered listener or binding, null once a binding has been collected.
+         */
+        abstract Object getTarget();
+
+        /**
+         * Returns false if the target is gone.
+         */
+        abstract boolean deliver(CameraKitEvent event);
+
+    }
+
+    private static class ListenerRegistration extends Registration {
+
+        private final CameraKitEventListener listener;
+
+        ListenerRegistration(CameraKitEventListener listener, int delivery, Executor executor, Class<?>[] eventTypes) {
+            super(delivery, executor, eventTypes);
+            this.listener = listener;
+        }
+
+        @Override
+        Object getTarget() {
+            return listener;
+        }
+
+        @Override
+        boolean deliver(CameraKitEvent event) {
+            listener.onEvent(event);
+            if (event instanceof CameraKitError) listener.onError((CameraKitError) event);
+            if (event instanceof CameraKitImage) listener.onImage((CameraKitImage) event);
+            if (event instanceof CameraKitVideo) listener.onVideo((CameraKitVideo) event);
+            return true;
+        }
+
+    }
+
+    private static class BindingRegistration extends Registration {
+
+        private final WeakReference<Object> binding;
+        private final CameraKitEventBinder<Object> binder;
+
+        BindingRegistration(@NonNull Object binding, int delivery, Executor executor, Class<?>[] eventTypes) {
+            super(delivery, executor, eventTypes);
+            this.binding = new WeakReference<>(binding);
+            this.binder = getBinder(binding.getClass());
+        }
+
+        @Override
+        Object getTarget() {
+            return binding.get();
+        }
+
+        @Override
+        boolean deliver(CameraKitEvent event) {
+            Object target = binding.get();
+            if (target == null) {
+                return false;
+            }
+
+            // Only bindings are guarded, as they always were; a listener that throws still crashes.
+            try {
+                binder.dispatchEvent(target, event);
+            } catch (Exception e) {
+                Log.e(TAG, "Unable to deliver " + event + " to " + target, e);
+            }
+            return true;
         }
 
-        private class MethodHolder {
+    }
+
+    private static final String BINDER_SUFFIX = "_CameraKitBinder";
 
-            private Object binding;
-            private Method method;
+    // One binder per bound class, shared by every instance of it.
+    private static final Map<Class<?>, CameraKitEventBinder<Object>> sBinders = new HashMap<>();
 
-            public MethodHolder(Object binding, Method method) {
-                this.binding = binding;
-                this.method = method;
+    /**
+     * Returns the generated binder for {@code bindingClass}, or a reflective one if the class
+     * wasn't run through camerakit-compiler.
+     */
+    @SuppressWarnings("unchecked")
+    private static CameraKitEventBinder<Object> getBinder(Class<?> bindingClass) {
+        synchronized (sBinders) {
+            CameraKitEventBinder<Object> binder = sBinders.get(bindingClass);
+            if (binder != null) {
+                return binder;
             }
 
-            public Object getBinding() {
-                return binding;
+            try {
+                Class<?> binderClass = Class.forName(bindingClass.getName() + BINDER_SUFFIX, true, bindingClass.getClassLoader());
+                binder = (CameraKitEventBinder<Object>) binderClass.newInstance();
+            } catch (ClassNotFoundException e) {
+                binder = new ReflectiveBinder(bindingClass);
+            } catch (InstantiationException e) {
+                throw new RuntimeException("Unable to create CameraKit binder for " + bindingClass.getName(), e);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("Unable to create CameraKit binder for " + bindingClass.getName(), e);
             }
 
-            public Method getMethod() {
-                return method;
+            sBinders.put(bindingClass, binder);
+            return binder;
+        }
+    }
+
+    /**
+     * Finds {@link OnCameraKitEvent} methods of a class and its superclasses once, then resolves
+     * and caches the methods for each concrete event class the first time it is dispatched. A
+     * method takes every event that is an instance of its annotated type.
+     * <p/>
+     * Methods are called in the same order as by a generated binder: superclass methods first,
+     * and an override in place of the method it overrides. Reflection doesn't tell declaration
+     * order, so within one class methods are ordered by name and parameter types instead of
+     * whatever order {@link Class#getDeclaredMethods()} happens to return.
+     */
+    private static class ReflectiveBinder implements CameraKitEventBinder<Object> {
+
+        private static final Method[] NO_METHODS = new Method[0];
+
+        private static final Comparator<Method> SIGNATURE_ORDER = new Comparator<Method>() {
+            @Override
+            public int compare(Method first, Method second) {
+                return getSignature(first).compareTo(getSignature(second));
+            }
+        };
+
+        private final List<Method> methods = new ArrayList<>();
+        private final Map<Class<?>, Method[]> methodsByEvent = new ConcurrentHashMap<>();
+
+        ReflectiveBinder(Class<?> bindingClass) {
+            List<Class<?>> hierarchy = new ArrayList<>();
+            for (Class<?> type = bindingClass; type != null && type != Object.class; type = type.getSuperclass()) {
+                hierarchy.add(0, type);
             }
 
+            // Keyed by signature, so an override takes the place of the method it overrides.
+            Map<String, Method> bySignature = new LinkedHashMap<>();
+            for (Class<?> type : hierarchy) {
+                Method[] declared = type.getDeclaredMethods();
+                Arrays.sort(declared, SIGNATURE_ORDER);
+
+                for (Method method : declared) {
+                    if (!method.isAnnotationPresent(OnCameraKitEvent.class)) continue;
+
+                    method.setAccessible(true);
+                    bySignature.put(getSignature(method), method);
+                }
+            }
+            methods.addAll(bySignature.values());
+        }
+
+        private static String getSignature(Method method) {
+            return method.getName() + Arrays.toString(method.getParameterTypes());
+        }
+
+        @Override
+        public void dispatchEvent(Object target, CameraKitEvent event) {
+            Method[] eventMethods = methodsByEvent.get(event.getClass());
+            if (eventMethods == null) {
+                eventMethods = resolve(event.getClass());
+                methodsByEvent.put(event.getClass(), eventMethods);
+            }
+
+            for (Method method : eventMethods) {
+                try {
+                    method.invoke(target, event);
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException(e);
+                } catch (InvocationTargetException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        }
+
+        private Method[] resolve(Class<?> eventClass) {
+            List<Method> matching = new ArrayList<>();
+            for (Method method : methods) {
+                if (method.getAnnotation(OnCameraKitEvent.class).value().isAssignableFrom(eventClass)) {
+                    matching.add(method);
+                }
+            }
+            return matching.isEmpty() ? NO_METHODS : matching.toArray(new Method[matching.size()]);
         }
 
     }
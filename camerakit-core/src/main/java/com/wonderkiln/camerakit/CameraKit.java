@@ -43,6 +43,13 @@ public class CameraKit {
         public static final int VIDEO_QUALITY_LOWEST = 5;
         public static final int VIDEO_QUALITY_QVGA = 6;
 
+        public static final int POST_PROCESSING_BLOCK = 0;
+        public static final int POST_PROCESSING_DROP = 1;
+        public static final int POST_PROCESSING_COALESCE = 2;
+
+        public static final int DELIVERY_MAIN_THREAD = 0;
+        public static final int DELIVERY_IMMEDIATE = 1;
+
     }
 
     static class Defaults {
@@ -62,6 +69,12 @@ public class CameraKit {
         static final boolean DEFAULT_DOUBLE_TAP_TO_TOGGLE_FACING = false;
         static final boolean DEFAULT_ADJUST_VIEW_BOUNDS = false;
 
+        static final int DEFAULT_POST_PROCESSING_POLICY = Constants.POST_PROCESSING_BLOCK;
+        static final int DEFAULT_POST_PROCESSING_QUEUE_SIZE = 2;
+
+        static final float DEFAULT_DETECTION_DUTY_CYCLE = 0f;
+        static final int DEFAULT_DETECTION_DOWNSCALE = 1;
+
     }
 
 }
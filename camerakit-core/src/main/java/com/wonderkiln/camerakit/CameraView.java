@@ -16,8 +16,7 @@ import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.pm.PackageManager;
 import android.content.res.TypedArray;
-import android.os.Handler;
-import android.os.HandlerThread;
+import android.graphics.Rect;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
@@ -31,26 +30,17 @@ import android.view.WindowManager;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
+import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.text.TextRecognizer;
 import com.wonderkiln.camerakit.core.R;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 public class CameraView extends CameraViewLayout {
 
-    private static Handler sWorkerHandler;
-
-    static {
-        // Initialize a single worker thread. This can be static since only a single camera
-        // reference can exist at a time.
-        HandlerThread workerThread = new HandlerThread("CameraViewWorker");
-        workerThread.setDaemon(true);
-        workerThread.start();
-        sWorkerHandler = new Handler(workerThread.getLooper());
-    }
-
     @Facing
     private int mFacing;
 
@@ -72,12 +62,21 @@ public class CameraView extends CameraViewLayout {
 
     @VideoQuality
     private int mVideoQuality;
-    private int mJpegQuality;
+    private int mJpegQuality = CameraKit.Defaults.DEFAULT_JPEG_QUALITY;
     private int mVideoBitRate;
     private boolean mLockVideoAspectRatio;
     private boolean mCropOutput;
     private boolean mDoubleTapToToggleFacing;
 
+    @PostProcessingPolicy
+    private int mPostProcessingPolicy = CameraKit.Defaults.DEFAULT_POST_PROCESSING_POLICY;
+    private int mPostProcessingQueueSize = CameraKit.Defaults.DEFAULT_POST_PROCESSING_QUEUE_SIZE;
+    private PostProcessingQueue mPostProcessingQueue;
+
+    private float mDetectionDutyCycle = CameraKit.Defaults.DEFAULT_DETECTION_DUTY_CYCLE;
+    private int mDetectionDownscale = CameraKit.Defaults.DEFAULT_DETECTION_DOWNSCALE;
+    private Rect mDetectionRegion;
+
     private boolean mAdjustViewBounds;
 
     private DisplayOrientationDetector mDisplayOrientationDetector;
@@ -121,6 +120,10 @@ public class CameraView extends CameraViewLayout {
                 mVideoBitRate = a.getInteger(R.styleable.CameraView_ckVideoBitRate, CameraKit.Defaults.DEFAULT_VIDEO_BIT_RATE);
                 mDoubleTapToToggleFacing = a.getBoolean(R.styleable.CameraView_ckDoubleTapToToggleFacing, CameraKit.Defaults.DEFAULT_DOUBLE_TAP_TO_TOGGLE_FACING);
                 mLockVideoAspectRatio = a.getBoolean(R.styleable.CameraView_ckLockVideoAspectRatio, false);
+                mPostProcessingPolicy = a.getInteger(R.styleable.CameraView_ckPostProcessingPolicy, CameraKit.Defaults.DEFAULT_POST_PROCESSING_POLICY);
+                mPostProcessingQueueSize = a.getInteger(R.styleable.CameraView_ckPostProcessingQueueSize, CameraKit.Defaults.DEFAULT_POST_PROCESSING_QUEUE_SIZE);
+                mDetectionDutyCycle = a.getFloat(R.styleable.CameraView_ckDetectionDutyCycle, CameraKit.Defaults.DEFAULT_DETECTION_DUTY_CYCLE);
+                mDetectionDownscale = a.getInteger(R.styleable.CameraView_ckDetectionDownscale, CameraKit.Defaults.DEFAULT_DETECTION_DOWNSCALE);
                 mAdjustViewBounds = a.getBoolean(R.styleable.CameraView_android_adjustViewBounds, CameraKit.Defaults.DEFAULT_ADJUST_VIEW_BOUNDS);
             } finally {
                 a.recycle();
@@ -130,7 +133,8 @@ public class CameraView extends CameraViewLayout {
         mEventDispatcher = new EventDispatcher();
 
         mPreviewImpl = new SurfaceViewPreview(context, this);
-        mCameraImpl = new Camera1(mEventDispatcher, mPreviewImpl);
+        // Camera operations run on the camera thread, never on the caller's.
+        mCameraImpl = new CameraCommandQueue(new Camera1(context, mEventDispatcher, mPreviewImpl));
 
         mIsStarted = false;
 
@@ -151,6 +155,9 @@ public class CameraView extends CameraViewLayout {
         setVideoQuality(mVideoQuality);
         setVideoBitRate(mVideoBitRate);
         setLockVideoAspectRatio(mLockVideoAspectRatio);
+        setJpegQuality(mJpegQuality);
+        setDetectionDutyCycle(mDetectionDutyCycle);
+        setDetectionDownscale(mDetectionDownscale);
 
         if (!isInEditMode()) {
             mDisplayOrientationDetector = new DisplayOrientationDetector(context) {
@@ -179,10 +186,15 @@ public class CameraView extends CameraViewLayout {
         }
     }
 
+    /**
+     * Also releases the text detector set up by the text detection listeners, since nothing else
+     * holds on to it. Set the listener again if the view is attached again.
+     */
     @Override
     protected void onDetachedFromWindow() {
         if (!isInEditMode()) {
             mDisplayOrientationDetector.disable();
+            mCameraImpl.setTextDetector(null);
         }
         super.onDetachedFromWindow();
     }
@@ -260,12 +272,7 @@ public class CameraView extends CameraViewLayout {
                 break;
         }
 
-        sWorkerHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                mCameraImpl.start();
-            }
-        }, 100);
+        mCameraImpl.start();
     }
 
     public void stop() {
@@ -331,14 +338,9 @@ public class CameraView extends CameraViewLayout {
         return mFacing == CameraKit.Constants.FACING_BACK;
     }
 
-    public void setFacing(@Facing final int facing) {
+    public void setFacing(@Facing int facing) {
         this.mFacing = facing;
-        sWorkerHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                mCameraImpl.setFacing(facing);
-            }
-        });
+        mCameraImpl.setFacing(facing);
     }
 
     public void setFlash(@Flash int flash) {
@@ -396,12 +398,31 @@ public class CameraView extends CameraViewLayout {
 
     public void setJpegQuality(int jpegQuality) {
         this.mJpegQuality = jpegQuality;
+        mCameraImpl.setJpegQuality(jpegQuality);
     }
 
     public void setCropOutput(boolean cropOutput) {
         this.mCropOutput = cropOutput;
     }
 
+    /**
+     * Chooses what happens to a new picture when {@link #setPostProcessingQueueSize(int)} pictures
+     * are already waiting to be post-processed. Pictures already queued are still delivered.
+     * Defaults to {@link CameraKit.Constants#POST_PROCESSING_BLOCK}, which never loses a picture.
+     * Pictures arrive on the camera thread, which it doesn't hold up; the queue grows past its
+     * size there instead. {@link CameraKit.Constants#POST_PROCESSING_DROP} and
+     * {@link CameraKit.Constants#POST_PROCESSING_COALESCE} keep it bounded at the cost of pictures.
+     */
+    public synchronized void setPostProcessingPolicy(@PostProcessingPolicy int postProcessingPolicy) {
+        this.mPostProcessingPolicy = postProcessingPolicy;
+        resetPostProcessingQueue();
+    }
+
+    public synchronized void setPostProcessingQueueSize(int postProcessingQueueSize) {
+        this.mPostProcessingQueueSize = postProcessingQueueSize;
+        resetPostProcessingQueue();
+    }
+
     @Facing
     public int toggleFacing() {
         switch (mFacing) {
@@ -441,9 +462,42 @@ public class CameraView extends CameraViewLayout {
         captureImage(null);
     }
 
+    /**
+     * Calls {@code callback} for every text block detected, on the detector thread. Each block is
+     * also dispatched to listeners as a {@link CameraKitTextDetect}, next to one
+     * {@link CameraKitTextDetections} per frame. Prefer
+     * {@link #setTextDetectionsListener(CameraKitEventCallback)} when text is dense.
+     */
     public boolean setTextDetectionListener(final CameraKitEventCallback<CameraKitTextDetect> callback) throws GooglePlayServicesUnavailableException {
+        return setTextProcessor(new TextProcessor(mEventDispatcher, callback));
+    }
+
+    /**
+     * Calls {@code callback} once per frame with every text block detected in it, on the
+     * detector thread. Listeners only get the matching {@link CameraKitTextDetections} event, not
+     * one event per block.
+     */
+    public boolean setTextDetectionsListener(final CameraKitEventCallback<CameraKitTextDetections> callback) throws GooglePlayServicesUnavailableException {
+        return setTextProcessor(TextProcessor.forDetections(mEventDispatcher, callback));
+    }
+
+    /**
+     * Follows detected text across frames with {@code tracker} and calls {@code callback}, on the
+     * detector thread, only when blocks appear, change or disappear. Each block keeps the same id
+     * while it is tracked. On a steady scene this is a handful of events rather than one per
+     * frame. Listeners get the same {@link CameraKitTextChanges}.
+     */
+    public boolean setTextTrackingListener(TextBlockTracker tracker, final CameraKitEventCallback<CameraKitTextChanges> callback) throws GooglePlayServicesUnavailableException {
+        return setTextProcessor(TextProcessor.forTracking(mEventDispatcher, tracker, callback));
+    }
+
+    public boolean setTextTrackingListener(final CameraKitEventCallback<CameraKitTextChanges> callback) throws GooglePlayServicesUnavailableException {
+        return setTextTrackingListener(new TextBlockTracker(), callback);
+    }
+
+    private boolean setTextProcessor(TextProcessor processor) throws GooglePlayServicesUnavailableException {
         TextRecognizer textRecognizer = new TextRecognizer.Builder(getContext()).build();
-        textRecognizer.setProcessor(new TextProcessor(mEventDispatcher, callback));
+        textRecognizer.setProcessor(processor);
         int code = GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(getContext().getApplicationContext());
         if (code != ConnectionResult.SUCCESS) {
             throw new GooglePlayServicesUnavailableException();
@@ -457,21 +511,158 @@ public class CameraView extends CameraViewLayout {
         }
     }
 
+    /**
+     * Runs {@code detector} on the preview alongside any other detectors, including the text
+     * detector. Every detector gets its own thread and reads the same preview buffers, so adding
+     * one doesn't copy frames. The detector's processor receives the results.
+     * <p/>
+     * The detector outlives camera sessions and is never released by the view; release it after
+     * {@link #removeDetector(Detector)} once it's no longer needed.
+     *
+     * @param targetFps the most frames per second to hand to this detector, or 0 for as many as it
+     *                  can keep up with
+     */
+    public void addDetector(Detector<?> detector, float targetFps) {
+        mCameraImpl.addDetector(detector, targetFps);
+    }
+
+    public void addDetector(Detector<?> detector) {
+        addDetector(detector, 0);
+    }
+
+    public void removeDetector(Detector<?> detector) {
+        mCameraImpl.removeDetector(detector);
+    }
+
+    /**
+     * Caps how much of the time each detector may spend working, between 0 and 1. Frames are
+     * spaced out based on a moving average of each detector's recent latency, so a detector that
+     * takes 40 ms per frame with a duty cycle of 0.25 gets a frame about every 160 ms. 0 turns the
+     * limit off. Useful to keep devices from heating up during long scanning sessions.
+     */
+    public void setDetectionDutyCycle(float dutyCycle) {
+        this.mDetectionDutyCycle = dutyCycle;
+        mCameraImpl.setDetectionDutyCycle(dutyCycle);
+    }
+
+    public float getDetectionDutyCycle() {
+        return mDetectionDutyCycle;
+    }
+
+    /**
+     * Only runs detection on the part of the preview under {@code region}, given in this view's
+     * coordinates, e.g. the bounds of a scanning frame drawn over the preview. The region follows
+     * the preview through rotation and scaling, and each frame is cropped natively before it
+     * reaches the detectors, so they have far fewer pixels to search. Detection results are then
+     * relative to the cropped frame. Pass null to detect on the whole frame again.
+     */
+    public void setDetectionRegion(@Nullable Rect region) {
+        this.mDetectionRegion = region != null ? new Rect(region) : null;
+        mCameraImpl.setDetectionRegion(region);
+    }
+
+    @Nullable
+    public Rect getDetectionRegion() {
+        return mDetectionRegion != null ? new Rect(mDetectionRegion) : null;
+    }
+
+    /**
+     * Shrinks frames by this factor in each direction before detection, on top of any detection
+     * region. 2 hands detectors a quarter of the pixels, which is usually plenty for large text
+     * or barcodes. Detection results are in the downscaled frame's coordinates.
+     */
+    public void setDetectionDownscale(int downscale) {
+        this.mDetectionDownscale = Math.max(downscale, 1);
+        mCameraImpl.setDetectionDownscale(mDetectionDownscale);
+    }
+
+    public int getDetectionDownscale() {
+        return mDetectionDownscale;
+    }
+
+    /**
+     * The detectors currently running on the preview, with their measured latency, current
+     * frame interval and frame counters. Empty while the camera is closed.
+     */
+    public List<FrameProcessingRunnable> getFrameProcessors() {
+        return mCameraImpl.getFrameProcessors();
+    }
+
     public void captureImage(final CameraKitEventCallback<CameraKitImage> callback) {
         mCameraImpl.captureImage(new CameraImpl.ImageCapturedCallback() {
             @Override
             public void imageCaptured(byte[] jpeg) {
-                PostProcessor postProcessor = new PostProcessor(jpeg);
-                postProcessor.setJpegQuality(mJpegQuality);
-                postProcessor.setFacing(mFacing);
-                if (mCropOutput)
-                    postProcessor.setCropOutput(AspectRatio.of(getWidth(), getHeight()));
+                // Decode/transform/encode happens off the camera thread so the preview can
+                // restart right away instead of waiting on the JPEG work.
+                postProcess(jpeg, -1, 0, 1, callback);
+            }
+        });
+    }
+
+    public void captureBurst(int count) {
+        captureBurst(count, null);
+    }
 
-                CameraKitImage image = new CameraKitImage(postProcessor.getJpeg());
+    /**
+     * Takes {@code count} pictures back to back without closing the camera. Each image is
+     * delivered as soon as it has been post-processed, with {@link CameraKitImage#getBurstIndex()}
+     * and {@link CameraKitImage#getTimestamp()} set. Post-processing of one shot overlaps with the
+     * exposure of the next; the post-processing queue makes room for the whole burst, so no shot
+     * waits for or drops another.
+     * <p/>
+     * A few cameras can't restart their preview after a picture and have to be reopened. On those
+     * the camera is reopened once, with its close and open events, after the first shot, and the
+     * rest of the burst is taken from preview frames as with {@link CameraKit.Constants#METHOD_STILL}.
+     */
+    public void captureBurst(final int count, final CameraKitEventCallback<CameraKitImage> callback) {
+        mCameraImpl.captureBurst(count, new CameraImpl.BurstCapturedCallback() {
+            @Override
+            public void imageCaptured(byte[] jpeg, int index, long timestamp) {
+                postProcess(jpeg, index, timestamp, count, callback);
+            }
+        });
+    }
+
+    private void postProcess(byte[] jpeg, final int burstIndex, final long timestamp, int burstCount, final CameraKitEventCallback<CameraKitImage> callback) {
+        PostProcessor postProcessor = new PostProcessor(jpeg);
+        postProcessor.setJpegQuality(mJpegQuality);
+        postProcessor.setFacing(mFacing);
+        if (mCropOutput)
+            postProcessor.setCropOutput(AspectRatio.of(getWidth(), getHeight()));
+
+        getPostProcessingQueue().submit(postProcessor, new PostProcessingQueue.Callback() {
+            @Override
+            public void onProcessed(byte[] processedJpeg) {
+                CameraKitImage image = new CameraKitImage(processedJpeg, burstIndex, timestamp);
                 if (callback != null) callback.callback(image);
                 mEventDispatcher.dispatch(image);
             }
-        });
+
+            @Override
+            public void onDropped() {
+                mEventDispatcher.dispatch(new CameraKitError(new IllegalStateException("Captured image dropped, post-processing queue is full.")));
+            }
+
+            @Override
+            public void onFailed(RuntimeException e) {
+                mEventDispatcher.dispatch(new CameraKitError(e));
+            }
+        }, burstCount);
+    }
+
+    private synchronized PostProcessingQueue getPostProcessingQueue() {
+        if (mPostProcessingQueue == null) {
+            mPostProcessingQueue = new PostProcessingQueue(mPostProcessingQueueSize, mPostProcessingPolicy);
+        }
+
+        return mPostProcessingQueue;
+    }
+
+    private synchronized void resetPostProcessingQueue() {
+        if (mPostProcessingQueue != null) {
+            mPostProcessingQueue.shutdown();
+            mPostProcessingQueue = null;
+        }
     }
 
     public void captureVideo() {
@@ -531,12 +722,93 @@ public class CameraView extends CameraViewLayout {
         }
     }
 
+    /**
+     * Registers a listener on the main thread, or moves it there if it's already registered.
+     * Listeners are held strongly, so remove them again with
+     * {@link #removeCameraKitListener(CameraKitEventListener)} when the screen that registered
+     * them goes away.
+     */
     public void addCameraKitListener(CameraKitEventListener CameraKitEventListener) {
         mEventDispatcher.addListener(CameraKitEventListener);
     }
 
+    /**
+     * Registers a listener that is called on the main thread, or with
+     * {@link CameraKit.Constants#DELIVERY_IMMEDIATE} straight on the thread that produced each
+     * event (camera, detector or post-processing thread), which skips the main thread queue
+     * entirely. Only events of the given types, subclasses included, are delivered; events
+     * nobody on the main thread wants are never posted there.
+     *
+     * @param eventTypes the {@link CameraKitEvent} classes to deliver, or none for every event
+     */
+    public void addCameraKitListener(CameraKitEventListener CameraKitEventListener, @EventDelivery int delivery, Class<?>... eventTypes) {
+        mEventDispatcher.addListener(CameraKitEventListener, delivery, eventTypes);
+    }
+
+    /**
+     * Same as {@link #addCameraKitListener(CameraKitEventListener, int, Class[])}, but calls the
+     * listener on {@code executor}.
+     */
+    public void addCameraKitListener(CameraKitEventListener CameraKitEventListener, @NonNull Executor executor, Class<?>... eventTypes) {
+        mEventDispatcher.addListener(CameraKitEventListener, executor, eventTypes);
+    }
+
+    public void removeCameraKitListener(CameraKitEventListener CameraKitEventListener) {
+        mEventDispatcher.remove(CameraKitEventListener);
+    }
+
+    /**
+     * Delivers events to the {@link OnCameraKitEvent} methods of {@code object}. Only a weak
+     * reference is kept, so the object has to be referenced elsewhere to keep receiving events,
+     * and a bound Activity doesn't leak when it is destroyed without being unbound.
+     */
     public void bindCameraKitListener(Object object) {
         mEventDispatcher.addBinding(object);
     }
 
+    /**
+     * Same as {@link #bindCameraKitListener(Object)}, delivered like
+     * {@link #addCameraKitListener(CameraKitEventListener, int, Class[])}.
+     */
+    public void bindCameraKitListener(Object object, @EventDelivery int delivery, Class<?>... eventTypes) {
+        mEventDispatcher.addBinding(object, delivery, eventTypes);
+    }
+
+    public void bindCameraKitListener(Object object, @NonNull Executor executor, Class<?>... eventTypes) {
+        mEventDispatcher.addBinding(object, executor, eventTypes);
+    }
+
+    public void unbindCameraKitListener(Object object) {
+        mEventDispatcher.remove(object);
+    }
+
+    /**
+     * Coalesces main thread deliveries of one event type, e.g.
+     * {@link CameraKitEvent#TYPE_FOCUS_MOVED}: of the events that arrive between two display
+     * frames only the newest is delivered. Focus moves and per-frame text detections are
+     * coalesced by default. Listeners delivered to off the main thread always get every event.
+     */
+    public void setEventCoalescing(String eventType, boolean coalesce) {
+        mEventDispatcher.setCoalescing(eventType, coalesce);
+    }
+
+    public boolean isEventCoalescing(String eventType) {
+        return mEventDispatcher.isCoalescing(eventType);
+    }
+
+    /**
+     * Number of events dropped in favour of a newer event of the same type before reaching the
+     * main thread.
+     */
+    public long getCoalescedEventCount() {
+        return mEventDispatcher.getCoalescedEventCount();
+    }
+
+    /**
+     * Number of events delivered to main thread listeners.
+     */
+    public long getDeliveredEventCount() {
+        return mEventDispatcher.getDeliveredEventCount();
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,14 @@
+package com.wonderkiln.camerakit;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+import static com.wonderkiln.camerakit.CameraKit.Constants.DELIVERY_IMMEDIATE;
+import static com.wonderkiln.camerakit.CameraKit.Constants.DELIVERY_MAIN_THREAD;
+
+@Retention(RetentionPolicy.SOURCE)
+@IntDef({DELIVERY_MAIN_THREAD, DELIVERY_IMMEDIATE})
+public @interface EventDelivery {
+}
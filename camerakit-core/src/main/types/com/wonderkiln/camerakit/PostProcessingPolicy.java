@@ -0,0 +1,15 @@
+package com.wonderkiln.camerakit;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+import static com.wonderkiln.camerakit.CameraKit.Constants.POST_PROCESSING_BLOCK;
+import static com.wonderkiln.camerakit.CameraKit.Constants.POST_PROCESSING_COALESCE;
+import static com.wonderkiln.camerakit.CameraKit.Constants.POST_PROCESSING_DROP;
+
+@Retention(RetentionPolicy.SOURCE)
+@IntDef({POST_PROCESSING_BLOCK, POST_PROCESSING_DROP, POST_PROCESSING_COALESCE})
+public @interface PostProcessingPolicy {
+}
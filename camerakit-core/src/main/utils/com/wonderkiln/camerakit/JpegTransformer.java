@@ -2,52 +2,120 @@ package com.wonderkiln.camerakit;
 
 import android.graphics.Rect;
 
+import java.io.Closeable;
 import java.nio.ByteBuffer;
 
-public class JpegTransformer {
+/**
+ * Queues lossless flips, rotation and crop on a JPEG and applies them on commit. Native state is
+ * held until {@link #close()} is called; TurboJPEG handles and scratch memory are cached per
+ * thread and reused across transformers.
+ */
+public class JpegTransformer implements Closeable {
 
     private ByteBuffer mHandler;
 
+    // Native code reads straight from a direct source buffer, so it has to stay reachable.
+    private ByteBuffer mJpegBuffer;
+
     public JpegTransformer(byte[] jpeg) {
         mHandler = jniStoreJpeg(jpeg, jpeg.length);
     }
 
+    /**
+     * Reads the JPEG between the buffer's position and limit in place, without copying it
+     * onto the Java heap. The buffer must be direct and left unmodified while this transformer
+     * is in use.
+     */
+    public JpegTransformer(ByteBuffer jpeg) {
+        if (!jpeg.isDirect()) {
+            throw new IllegalArgumentException("JpegTransformer requires a direct ByteBuffer.");
+        }
+
+        mJpegBuffer = jpeg;
+        mHandler = jniStoreJpegBuffer(jpeg, jpeg.position(), jpeg.remaining());
+    }
+
     public byte[] getJpeg() {
+        if (mHandler == null) return null;
         return jniCommit(mHandler);
     }
 
+    /**
+     * Same as {@link #getJpeg()}, but the result is written into a new direct ByteBuffer
+     * instead of a byte array.
+     */
+    public ByteBuffer getJpegBuffer() {
+        if (mHandler == null) return null;
+        return jniCommitBuffer(mHandler);
+    }
+
     public int getWidth() {
+        if (mHandler == null) return -1;
         return jniGetWidth(mHandler);
     }
 
     public int getHeight() {
+        if (mHandler == null) return -1;
         return jniGetHeight(mHandler);
     }
 
     public void rotate(int degrees) {
+        if (mHandler == null) return;
         jniRotate(mHandler, degrees);
     }
 
     public void flipHorizontal() {
+        if (mHandler == null) return;
         jniFlipHorizontal(mHandler);
     }
 
     public void flipVertical() {
+        if (mHandler == null) return;
         jniFlipVertical(mHandler);
     }
 
     public void crop(Rect crop) {
+        if (mHandler == null) return;
         jniCrop(mHandler, crop.left, crop.top, crop.width(), crop.height());
     }
 
+    /**
+     * Releases the stored JPEG. Results already returned by {@link #getJpeg()} or
+     * {@link #getJpegBuffer()} stay valid.
+     */
+    @Override
+    public void close() {
+        releaseJpeg();
+    }
+
+    private void releaseJpeg() {
+        if (mHandler == null) return;
+        jniReleaseJpeg(mHandler);
+        mHandler = null;
+        mJpegBuffer = null;
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        super.finalize();
+        if (mHandler == null) return;
+        releaseJpeg();
+    }
+
     static {
         System.loadLibrary("jpegTransformer");
     }
 
     private native ByteBuffer jniStoreJpeg(byte[] jpeg, int size);
 
+    private native ByteBuffer jniStoreJpegBuffer(ByteBuffer jpeg, int offset, int size);
+
     private native byte[] jniCommit(ByteBuffer handler);
 
+    private native ByteBuffer jniCommitBuffer(ByteBuffer handler);
+
+    private native void jniReleaseJpeg(ByteBuffer handler);
+
     private native int jniGetWidth(ByteBuffer handler);
 
     private native int jniGetHeight(ByteBuffer handler);
@@ -0,0 +1,181 @@
+package com.wonderkiln.camerakit;
+
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.wonderkiln.camerakit.CameraKit.Constants.POST_PROCESSING_BLOCK;
+import static com.wonderkiln.camerakit.CameraKit.Constants.POST_PROCESSING_COALESCE;
+
+/**
+ * Runs {@link PostProcessor} work on a background thread so the camera callback thread is free
+ * to restart the preview as soon as a picture arrives. At most {@code capacity} pictures wait
+ * behind the one being processed; once that is reached the {@link PostProcessingPolicy} decides
+ * whether the caller waits, the new picture is dropped, or the oldest waiting picture is.
+ * <p/>
+ * The camera thread never waits: pictures submitted from it under
+ * {@link CameraKit.Constants#POST_PROCESSING_BLOCK} are queued past {@code capacity} instead.
+ * Every picture submitted is either delivered or reported as dropped or failed, including those
+ * caught by {@link #shutdown()} and those the post-processor throws on.
+ */
+class PostProcessingQueue {
+
+    private static final long KEEP_ALIVE_MILLIS = 3000;
+
+    interface Callback {
+        void onProcessed(byte[] jpeg);
+        void onDropped();
+        void onFailed(RuntimeException e);
+    }
+
+    private final int mCapacity;
+
+    @PostProcessingPolicy
+    private final int mPolicy;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    // Guards admission to the executor's queue and shutdown, and is notified as tasks leave it.
+    private final Object mLock = new Object();
+    private boolean mShutdown;
+
+    PostProcessingQueue(int capacity, @PostProcessingPolicy int policy) {
+        mCapacity = Math.max(capacity, 1);
+        mPolicy = policy;
+
+        // The queue itself is unbounded, the capacity is enforced in submit().
+        mExecutor = new ThreadPoolExecutor(
+                1,
+                1,
+                KEEP_ALIVE_MILLIS,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new PostProcessingThreadFactory()
+        ) {
+            @Override
+            protected void beforeExecute(Thread thread, Runnable runnable) {
+                synchronized (mLock) {
+                    mLock.notifyAll();
+                }
+            }
+        };
+
+        // Don't hold on to an idle thread for every CameraView that was ever created.
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    void submit(PostProcessor postProcessor, Callback callback) {
+        submit(postProcessor, callback, mCapacity);
+    }
+
+    /**
+     * Like {@link #submit(PostProcessor, Callback)}, but lets the picture in as long as fewer than
+     * {@code capacity} are waiting, if that's more than the queue's own. Bursts pass their count,
+     * so none of their pictures wait or are dropped because of each other.
+     */
+    void submit(PostProcessor postProcessor, Callback callback, int capacity) {
+        Task task = new Task(postProcessor, callback);
+        Runnable dropped = null;
+        capacity = Math.max(capacity, mCapacity);
+
+        synchronized (mLock) {
+            BlockingQueue<Runnable> queue = mExecutor.getQueue();
+            while (!mShutdown && queue.size() >= capacity) {
+                if (mPolicy == POST_PROCESSING_BLOCK) {
+                    if (isCameraThread()) {
+                        break;
+                    }
+
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped = task;
+                        break;
+                    }
+                } else if (mPolicy == POST_PROCESSING_COALESCE) {
+                    dropped = queue.poll();
+                    break;
+                } else {
+                    dropped = task;
+                    break;
+                }
+            }
+
+            if (mShutdown) {
+                dropped = task;
+            } else if (dropped != task) {
+                // Under the lock, so it can't land in the queue after shutdown() has let the
+                // worker go.
+                mExecutor.execute(task);
+            }
+        }
+
+        if (dropped instanceof Task) {
+            ((Task) dropped).drop();
+        }
+    }
+
+    /**
+     * Stops accepting pictures. Those already queued are still processed and delivered, those
+     * still waiting to be queued are dropped.
+     */
+    void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mExecutor.shutdown();
+            mLock.notifyAll();
+        }
+    }
+
+    private static boolean isCameraThread() {
+        return Looper.myLooper() == CameraCommandQueue.getLooper();
+    }
+
+    private static class Task implements Runnable {
+
+        private PostProcessor postProcessor;
+        private Callback callback;
+
+        Task(PostProcessor postProcessor, Callback callback) {
+            this.postProcessor = postProcessor;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            // Caught here rather than left to kill the worker, so the caller still hears back.
+            byte[] jpeg;
+            try {
+                jpeg = postProcessor.getJpeg();
+            } catch (RuntimeException e) {
+                callback.onFailed(e);
+                return;
+            }
+
+            callback.onProcessed(jpeg);
+        }
+
+        void drop() {
+            callback.onDropped();
+        }
+
+    }
+
+    private static class PostProcessingThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "CameraKitPostProcessing");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
@@ -7,12 +7,14 @@ import android.util.Log;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import static com.wonderkiln.camerakit.CameraKit.Constants.FACING_FRONT;
 
 public class PostProcessor {
 
     private byte[] picture;
+    private ByteBuffer pictureBuffer;
     private int jpegQuality;
     private int facing;
     private AspectRatio cropAspectRatio;
@@ -21,6 +23,13 @@ public class PostProcessor {
         this.picture = picture;
     }
 
+    /**
+     * Post processes a JPEG held in a direct ByteBuffer without copying it onto the Java heap.
+     */
+    public PostProcessor(ByteBuffer picture) {
+        this.pictureBuffer = picture;
+    }
+
     public void setJpegQuality(int jpegQuality) {
         this.jpegQuality = jpegQuality;
     }
@@ -34,12 +43,32 @@ public class PostProcessor {
     }
 
     public byte[] getJpeg() {
-        JpegTransformer jpegTransformer = new JpegTransformer(picture);
+        JpegTransformer jpegTransformer = createTransformer();
+        try {
+            return jpegTransformer.getJpeg();
+        } finally {
+            jpegTransformer.close();
+        }
+    }
+
+    public ByteBuffer getJpegBuffer() {
+        JpegTransformer jpegTransformer = createTransformer();
+        try {
+            return jpegTransformer.getJpegBuffer();
+        } finally {
+            jpegTransformer.close();
+        }
+    }
+
+    private JpegTransformer createTransformer() {
+        JpegTransformer jpegTransformer = picture != null
+                ? new JpegTransformer(picture)
+                : new JpegTransformer(pictureBuffer);
 
         int width = jpegTransformer.getWidth();
         int height = jpegTransformer.getHeight();
 
-        ExifPostProcessor exifPostProcessor = new ExifPostProcessor(picture);
+        ExifPostProcessor exifPostProcessor = new ExifPostProcessor(openPicture());
         exifPostProcessor.apply(jpegTransformer);
 
         if (facing == FACING_FRONT) {
@@ -57,17 +86,24 @@ public class PostProcessor {
             new CenterCrop(cropWidth, cropHeight, cropAspectRatio).apply(jpegTransformer);
         }
 
-        return jpegTransformer.getJpeg();
+        return jpegTransformer;
+    }
+
+    private InputStream openPicture() {
+        if (picture != null) {
+            return new ByteArrayInputStream(picture);
+        }
 
+        return new ByteBufferInputStream(pictureBuffer.duplicate());
     }
 
     private static class ExifPostProcessor {
 
         private int orientation = ExifInterface.ORIENTATION_UNDEFINED;
 
-        public ExifPostProcessor(byte[] picture) {
+        public ExifPostProcessor(InputStream picture) {
             try {
-                orientation = getExifOrientation(new ByteArrayInputStream(picture));
+                orientation = getExifOrientation(picture);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -165,4 +201,39 @@ public class PostProcessor {
 
     }
 
+    private static class ByteBufferInputStream extends InputStream {
+
+        private ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+    }
+
 }
@@ -0,0 +1,150 @@
+package com.wonderkiln.camerakit;
+
+import android.graphics.ImageFormat;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide pool of preview callback buffers, keyed by preview size and format. Buffers handed
+ * back when a camera session ends are reused by the next one, so reopening or flipping the camera
+ * doesn't reallocate several megabytes of preview buffers every time.
+ */
+public class PreviewBufferPool {
+
+    private static final int DEFAULT_BUFFER_COUNT = 4;
+
+    // Enough for the back and front camera previews and a detection crop of each.
+    private static final int MAX_RETAINED_SIZES = 4;
+
+    private static final PreviewBufferPool sInstance = new PreviewBufferPool();
+
+    public static PreviewBufferPool getInstance() {
+        return sInstance;
+    }
+
+    // Access ordered, so the least recently used key comes first when trimming.
+    private final LinkedHashMap<Key, ArrayDeque<byte[]>> mFreeBuffers = new LinkedHashMap<>(4, 0.75f, true);
+
+    private int mBufferCount = DEFAULT_BUFFER_COUNT;
+    private long mHitCount;
+    private long mMissCount;
+
+    private PreviewBufferPool() {
+    }
+
+    /**
+     * Number of buffers a preview session queues with the camera, and the most the pool keeps
+     * for any one size. More buffers let detection fall further behind without dropping frames.
+     */
+    public synchronized void setBufferCount(int bufferCount) {
+        mBufferCount = Math.max(bufferCount, 1);
+        for (ArrayDeque<byte[]> buffers : mFreeBuffers.values()) {
+            while (buffers.size() > mBufferCount) {
+                buffers.poll();
+            }
+        }
+    }
+
+    public synchronized int getBufferCount() {
+        return mBufferCount;
+    }
+
+    /**
+     * Returns a buffer large enough for one preview frame of the given size and format, reusing a
+     * released one when possible.
+     */
+    public synchronized byte[] acquire(Size previewSize, int format) {
+        ArrayDeque<byte[]> buffers = mFreeBuffers.get(new Key(previewSize, format));
+        byte[] buffer = buffers != null ? buffers.poll() : null;
+        if (buffer != null) {
+            mHitCount++;
+            return buffer;
+        }
+
+        mMissCount++;
+        return new byte[getBufferSize(previewSize, format)];
+    }
+
+    /**
+     * Hands a buffer back to the pool. It must no longer be queued with a camera.
+     */
+    public synchronized void release(Size previewSize, int format, byte[] buffer) {
+        if (buffer == null || buffer.length != getBufferSize(previewSize, format)) {
+            return;
+        }
+
+        Key key = new Key(previewSize, format);
+        ArrayDeque<byte[]> buffers = mFreeBuffers.get(key);
+        if (buffers == null) {
+            buffers = new ArrayDeque<>(mBufferCount);
+            mFreeBuffers.put(key, buffers);
+            trimSizes();
+        }
+
+        if (buffers.size() < mBufferCount) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Drops every pooled buffer, e.g. from {@code onTrimMemory()}.
+     */
+    public synchronized void clear() {
+        mFreeBuffers.clear();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    private void trimSizes() {
+        Iterator<Map.Entry<Key, ArrayDeque<byte[]>>> iterator = mFreeBuffers.entrySet().iterator();
+        while (mFreeBuffers.size() > MAX_RETAINED_SIZES && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static int getBufferSize(Size previewSize, int format) {
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(format);
+        long sizeInBits = (long) previewSize.getHeight() * previewSize.getWidth() * bitsPerPixel;
+        return (int) Math.ceil(sizeInBits / 8.0d) + 1;
+    }
+
+    private static class Key {
+
+        private final Size size;
+        private final int format;
+
+        Key(Size size, int format) {
+            this.size = size;
+            this.format = format;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return format == key.format && size.equals(key.size);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * size.hashCode() + format;
+        }
+
+    }
+
+}
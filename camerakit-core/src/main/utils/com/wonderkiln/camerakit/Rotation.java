@@ -1,50 +1,163 @@
 package com.wonderkiln.camerakit;
 
+/**
+ * Rotates an NV21 frame clockwise in plain Java. Used when the native {@link YuvOperator} isn't
+ * available.
+ */
 public class Rotation {
 
+    // Square blocks keep both the destination rows and the source columns being read in cache.
+    private static final int BLOCK_SIZE = 32;
+
     private byte[] rotatedYuv;
 
     public Rotation(final byte[] yuv, final int width, final int height, final int rotation) {
-        if (rotation == 0) this.rotatedYuv = yuv;
+        this(yuv, width, height, rotation, null);
+    }
+
+    /**
+     * Same as {@link #Rotation(byte[], int, int, int)}, but writes into {@code output} when it is
+     * at least as large as {@code yuv}, so callers can reuse one buffer across frames.
+     */
+    public Rotation(final byte[] yuv, final int width, final int height, final int rotation, final byte[] output) {
         if (rotation % 90 != 0 || rotation < 0 || rotation > 270) {
             throw new IllegalArgumentException("0 <= rotation < 360, rotation % 90 == 0");
         }
 
-        final byte[] output = new byte[yuv.length];
+        if (rotation == 0 && output == null) {
+            this.rotatedYuv = yuv;
+            return;
+        }
+
+        final byte[] rotated = output != null && output.length >= yuv.length ? output : new byte[yuv.length];
         final int frameSize = width * height;
-        final boolean swap = rotation % 180 != 0;
-        final boolean xflip = rotation % 270 != 0;
-        final boolean yflip = rotation >= 180;
-
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-                final int yIn = j * width + i;
-                final int uIn = frameSize + (j >> 1) * width + (i & ~1);
-                final int vIn = uIn + 1;
-
-                final int wOut = swap ? height : width;
-                final int hOut = swap ? width : height;
-                final int iSwapped = swap ? j : i;
-                final int jSwapped = swap ? i : j;
-                final int iOut = xflip ? wOut - iSwapped - 1 : iSwapped;
-                final int jOut = yflip ? hOut - jSwapped - 1 : jSwapped;
-
-                final int yOut = jOut * wOut + iOut;
-                final int uOut = frameSize + (jOut >> 1) * wOut + (iOut & ~1);
-                final int vOut = uOut + 1;
-
-                output[yOut] = (byte) (0xff & yuv[yIn]);
-                output[uOut] = (byte) (0xff & yuv[uIn]);
-                output[vOut] = (byte) (0xff & yuv[vIn]);
+        final int chromaEnd = frameSize + frameSize / 2;
+
+        if (rotation == 0) {
+            System.arraycopy(yuv, 0, rotated, 0, yuv.length);
+        } else {
+            rotateLuma(yuv, rotated, width, height, rotation);
+            rotateChroma(yuv, rotated, frameSize, width / 2, height / 2, rotation);
+
+            if (yuv.length > chromaEnd) {
+                System.arraycopy(yuv, chromaEnd, rotated, chromaEnd, yuv.length - chromaEnd);
             }
         }
 
-        this.rotatedYuv = output;
+        this.rotatedYuv = rotated;
     }
 
     public byte[] getYuv() {
         return this.rotatedYuv;
     }
 
-}
+    private static void rotateLuma(byte[] src, byte[] dst, int width, int height, int rotation) {
+        switch (rotation) {
+            case 90:
+                // dst(x, y) = src(y, height - 1 - x)
+                for (int blockY = 0; blockY < width; blockY += BLOCK_SIZE) {
+                    final int yEnd = Math.min(blockY + BLOCK_SIZE, width);
+                    for (int blockX = 0; blockX < height; blockX += BLOCK_SIZE) {
+                        final int xEnd = Math.min(blockX + BLOCK_SIZE, height);
+                        for (int y = blockY; y < yEnd; y++) {
+                            int out = y * height + blockX;
+                            int in = (height - 1 - blockX) * width + y;
+                            for (int x = blockX; x < xEnd; x++) {
+                                dst[out++] = src[in];
+                                in -= width;
+                            }
+                        }
+                    }
+                }
+                break;
 
+            case 180:
+                // dst(x, y) = src(width - 1 - x, height - 1 - y), rows stay contiguous
+                for (int y = 0; y < height; y++) {
+                    int out = y * width;
+                    int in = (height - y) * width - 1;
+                    for (int x = 0; x < width; x++) {
+                        dst[out++] = src[in--];
+                    }
+                }
+                break;
+
+            case 270:
+                // dst(x, y) = src(width - 1 - y, x)
+                for (int blockY = 0; blockY < width; blockY += BLOCK_SIZE) {
+                    final int yEnd = Math.min(blockY + BLOCK_SIZE, width);
+                    for (int blockX = 0; blockX < height; blockX += BLOCK_SIZE) {
+                        final int xEnd = Math.min(blockX + BLOCK_SIZE, height);
+                        for (int y = blockY; y < yEnd; y++) {
+                            int out = y * height + blockX;
+                            int in = blockX * width + (width - 1 - y);
+                            for (int x = blockX; x < xEnd; x++) {
+                                dst[out++] = src[in];
+                                in += width;
+                            }
+                        }
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * Same as {@link #rotateLuma(byte[], byte[], int, int, int)} but for the interleaved VU plane,
+     * moving each two byte pair as one sample. Width and height are in pairs.
+     */
+    private static void rotateChroma(byte[] src, byte[] dst, int offset, int width, int height, int rotation) {
+        final int rowBytes = width * 2;
+
+        switch (rotation) {
+            case 90:
+                for (int blockY = 0; blockY < width; blockY += BLOCK_SIZE) {
+                    final int yEnd = Math.min(blockY + BLOCK_SIZE, width);
+                    for (int blockX = 0; blockX < height; blockX += BLOCK_SIZE) {
+                        final int xEnd = Math.min(blockX + BLOCK_SIZE, height);
+                        for (int y = blockY; y < yEnd; y++) {
+                            int out = offset + (y * height + blockX) * 2;
+                            int in = offset + (height - 1 - blockX) * rowBytes + y * 2;
+                            for (int x = blockX; x < xEnd; x++) {
+                                dst[out++] = src[in];
+                                dst[out++] = src[in + 1];
+                                in -= rowBytes;
+                            }
+                        }
+                    }
+                }
+                break;
+
+            case 180:
+                for (int y = 0; y < height; y++) {
+                    int out = offset + y * rowBytes;
+                    int in = offset + (height - y) * rowBytes - 2;
+                    for (int x = 0; x < width; x++) {
+                        dst[out++] = src[in];
+                        dst[out++] = src[in + 1];
+                        in -= 2;
+                    }
+                }
+                break;
+
+            case 270:
+                for (int blockY = 0; blockY < width; blockY += BLOCK_SIZE) {
+                    final int yEnd = Math.min(blockY + BLOCK_SIZE, width);
+                    for (int blockX = 0; blockX < height; blockX += BLOCK_SIZE) {
+                        final int xEnd = Math.min(blockX + BLOCK_SIZE, height);
+                        for (int y = blockY; y < yEnd; y++) {
+                            int out = offset + (y * height + blockX) * 2;
+                            int in = offset + blockX * rowBytes + (width - 1 - y) * 2;
+                            for (int x = blockX; x < xEnd; x++) {
+                                dst[out++] = src[in];
+                                dst[out++] = src[in + 1];
+                                in += rowBytes;
+                            }
+                        }
+                    }
+                }
+                break;
+        }
+    }
+
+}
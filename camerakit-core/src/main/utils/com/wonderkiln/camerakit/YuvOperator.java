@@ -1,5 +1,7 @@
 package com.wonderkiln.camerakit;
 
+import android.graphics.Rect;
+
 import java.nio.ByteBuffer;
 
 public class YuvOperator {
@@ -36,6 +38,36 @@ public class YuvOperator {
         return yuv;
     }
 
+    /**
+     * Encodes an NV21 frame straight to JPEG, rotating it clockwise by {@code rotation} degrees
+     * on the way. Returns null if the frame couldn't be encoded.
+     */
+    public static byte[] compressToJpeg(byte[] nv21, int width, int height, int rotation, int quality) {
+        return jniCompressToJpeg(nv21, width, height, rotation, quality);
+    }
+
+    /**
+     * Copies {@code region} out of an NV21 frame into {@code output} as a smaller NV21 frame,
+     * averaging each {@code downscale} x {@code downscale} square of pixels into one. The region
+     * has to start on even coordinates and be a multiple of {@code 2 * downscale} in each
+     * direction.
+     */
+    public static void crop(byte[] nv21, int width, int height, Rect region, int downscale, byte[] output) {
+        int align = 2 * downscale;
+        if (downscale < 1 || region.left < 0 || region.top < 0
+                || region.right > width || region.bottom > height
+                || region.left % 2 != 0 || region.top % 2 != 0
+                || region.width() <= 0 || region.width() % align != 0
+                || region.height() <= 0 || region.height() % align != 0) {
+            throw new IllegalArgumentException("Invalid crop region " + region + " for " + width + "x" + height
+                    + " frame downscaled by " + downscale);
+        }
+
+        if (!jniCropNv21(nv21, width, height, region.left, region.top, region.width(), region.height(), downscale, output)) {
+            throw new IllegalArgumentException("Buffers too small for crop region " + region);
+        }
+    }
+
     private void freeYuvData() {
         if (handler == null) return;
         jniFreeYuvData(handler);
@@ -65,4 +97,9 @@ public class YuvOperator {
 
     private native void jniFreeYuvData(ByteBuffer handler);
 
+    private static native byte[] jniCompressToJpeg(byte[] nv21, int width, int height, int rotation, int quality);
+
+    private static native boolean jniCropNv21(byte[] nv21, int width, int height, int left, int top,
+                                              int cropWidth, int cropHeight, int downscale, byte[] output);
+
 }
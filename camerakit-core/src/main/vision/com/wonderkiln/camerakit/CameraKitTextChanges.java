@@ -0,0 +1,51 @@
+package com.wonderkiln.camerakit;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What changed about the tracked text since the last event: blocks that appeared, blocks whose
+ * text or position changed, and blocks that disappeared. Only sent when something did change.
+ */
+public class CameraKitTextChanges extends CameraKitEvent {
+
+    private List<CameraKitTrackedText> appeared;
+    private List<CameraKitTrackedText> changed;
+    private List<CameraKitTrackedText> disappeared;
+    private int frameId;
+    private long timestampMillis;
+
+    CameraKitTextChanges(List<CameraKitTrackedText> appeared, List<CameraKitTrackedText> changed,
+                         List<CameraKitTrackedText> disappeared, int frameId, long timestampMillis) {
+        super(TYPE_TEXT_CHANGED);
+        this.appeared = Collections.unmodifiableList(appeared);
+        this.changed = Collections.unmodifiableList(changed);
+        this.disappeared = Collections.unmodifiableList(disappeared);
+        this.frameId = frameId;
+        this.timestampMillis = timestampMillis;
+    }
+
+    public List<CameraKitTrackedText> getAppeared() {
+        return appeared;
+    }
+
+    public List<CameraKitTrackedText> getChanged() {
+        return changed;
+    }
+
+    /**
+     * Blocks that are no longer tracked, with the text and bounds they were last reported with.
+     */
+    public List<CameraKitTrackedText> getDisappeared() {
+        return disappeared;
+    }
+
+    public int getFrameId() {
+        return frameId;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+}
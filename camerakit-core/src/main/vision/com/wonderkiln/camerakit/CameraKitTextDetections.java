@@ -0,0 +1,41 @@
+package com.wonderkiln.camerakit;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Every text block detected in one preview frame, delivered as a single event.
+ */
+public class CameraKitTextDetections extends CameraKitEvent {
+
+    private List<CameraKitTextBlock> textBlocks;
+    private int frameId;
+    private long timestampMillis;
+
+    CameraKitTextDetections(List<CameraKitTextBlock> textBlocks, int frameId, long timestampMillis) {
+        super(TYPE_TEXT_DETECTIONS);
+        this.textBlocks = Collections.unmodifiableList(textBlocks);
+        this.frameId = frameId;
+        this.timestampMillis = timestampMillis;
+    }
+
+    /**
+     * The blocks found in this frame, empty once text that was detected before has left the
+     * frame.
+     */
+    public List<CameraKitTextBlock> getTextBlocks() {
+        return textBlocks;
+    }
+
+    public int getFrameId() {
+        return frameId;
+    }
+
+    /**
+     * Time the frame was received, in milliseconds since detection started.
+     */
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.wonderkiln.camerakit;
+
+import android.graphics.Rect;
+
+/**
+ * A text block followed across frames by a {@link TextBlockTracker}. The id stays the same for as
+ * long as the block is tracked, while text and bounds are as of the event it came with.
+ */
+public class CameraKitTrackedText {
+
+    private int id;
+    private CameraKitTextBlock textBlock;
+    private String text;
+    private Rect boundingBox;
+
+    CameraKitTrackedText(int id, CameraKitTextBlock textBlock, String text, Rect boundingBox) {
+        this.id = id;
+        this.textBlock = textBlock;
+        this.text = text;
+        this.boundingBox = boundingBox;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public CameraKitTextBlock getTextBlock() {
+        return textBlock;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public Rect getBoundingBox() {
+        return new Rect(boundingBox);
+    }
+
+}
@@ -0,0 +1,206 @@
+package com.wonderkiln.camerakit;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.vision.Detector;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Feeds one camera preview stream to any number of detectors. Every detector gets its own
+ * {@link FrameProcessingRunnable} and thread, and they all share the same preview buffers: a
+ * buffer is only handed back to the camera after every detector that took the frame is done
+ * with it.
+ */
+public class FrameProcessingGraph {
+
+    private static final String TAG = FrameProcessingGraph.class.getSimpleName();
+
+    private final List<FrameProcessingRunnable> mProcessors = new ArrayList<>();
+    private final Size mPreviewSize;
+    private final Camera mCamera;
+
+    private final long mStartTimeMillis = SystemClock.elapsedRealtime();
+    private int mNextFrameId = 0;
+
+    private volatile boolean mActive = false;
+    private final AtomicInteger mRecyclingCount = new AtomicInteger();
+    private final AtomicLong mFramesReceived = new AtomicLong();
+
+    /**
+     * Map to convert between a byte array, received from the camera, and its associated byte
+     * buffer.  We use byte buffers internally because this is a more efficient way to call into
+     * native code later (avoids a potential copy).
+     */
+    private final Map<byte[], ByteBuffer> mBytesToByteBuffer = new HashMap<>();
+
+    private final SharedFrame.Recycler mRecycler = new SharedFrame.Recycler() {
+        @Override
+        public void recycle(ByteBuffer data) {
+            // cleanup() waits for this count to drain, so a buffer is never queued with the
+            // camera after it has gone back to the PreviewBufferPool.
+            mRecyclingCount.incrementAndGet();
+            try {
+                if (mActive) {
+                    mCamera.addCallbackBuffer(data.array());
+                }
+            } finally {
+                mRecyclingCount.decrementAndGet();
+            }
+        }
+    };
+
+    /**
+     * @param detectors each detector with its target frame rate, 0 for unlimited
+     * @param dutyCycle see {@link FrameProcessingRunnable#setDutyCycle(float)}
+     */
+    public FrameProcessingGraph(Map<Detector<?>, Float> detectors, float dutyCycle, Size previewSize, Camera camera) {
+        mPreviewSize = previewSize;
+        mCamera = camera;
+
+        for (Map.Entry<Detector<?>, Float> entry : detectors.entrySet()) {
+            mProcessors.add(new FrameProcessingRunnable(entry.getKey(), previewSize, entry.getValue(), dutyCycle));
+        }
+    }
+
+    public void setDutyCycle(float dutyCycle) {
+        for (FrameProcessingRunnable processor : mProcessors) {
+            processor.setDutyCycle(dutyCycle);
+        }
+    }
+
+    /**
+     * See {@link FrameProcessingRunnable#setCropRegion(Rect, int)}.
+     */
+    public void setCropRegion(Rect region, int downscale) {
+        for (FrameProcessingRunnable processor : mProcessors) {
+            processor.setCropRegion(region, downscale);
+        }
+    }
+
+    public List<FrameProcessingRunnable> getProcessors() {
+        return Collections.unmodifiableList(mProcessors);
+    }
+
+    /**
+     * Number of frames the camera has delivered since this graph was started.
+     */
+    public long getFramesReceived() {
+        return mFramesReceived.get();
+    }
+
+    public void start() {
+        mActive = true;
+        for (FrameProcessingRunnable processor : mProcessors) {
+            processor.start();
+        }
+
+        mCamera.setPreviewCallbackWithBuffer(new Camera.PreviewCallback() {
+            @Override
+            public void onPreviewFrame(byte[] bytes, Camera camera) {
+                setNextFrame(bytes);
+            }
+        });
+
+        int bufferCount = PreviewBufferPool.getInstance().getBufferCount();
+        for (int i = 0; i < bufferCount; i++) {
+            mCamera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
+        }
+    }
+
+    /**
+     * Stops every detector thread and returns the preview buffers to the
+     * {@link PreviewBufferPool}. Must be called while the camera is still open.
+     */
+    public void cleanup() {
+        mActive = false;
+        while (mRecyclingCount.get() > 0) {
+            Thread.yield();
+        }
+
+        try {
+            // Also drops every buffer still queued with the camera.
+            mCamera.setPreviewCallbackWithBuffer(null);
+        } catch (RuntimeException e) {
+            // Camera is already released, it won't touch the buffers again either way.
+        }
+
+        for (FrameProcessingRunnable processor : mProcessors) {
+            processor.stop();
+        }
+
+        PreviewBufferPool bufferPool = PreviewBufferPool.getInstance();
+        for (byte[] byteArray : mBytesToByteBuffer.keySet()) {
+            bufferPool.release(mPreviewSize, ImageFormat.NV21, byteArray);
+        }
+        mBytesToByteBuffer.clear();
+    }
+
+    /**
+     * Wraps the frame received from the camera and offers it to every detector.  The graph holds
+     * its own reference while doing so, which means the buffer goes straight back to the camera
+     * if no detector wanted this frame.
+     */
+    private void setNextFrame(byte[] data) {
+        if (!mActive) {
+            return;
+        }
+
+        mFramesReceived.incrementAndGet();
+
+        ByteBuffer buffer = mBytesToByteBuffer.get(data);
+        if (buffer == null) {
+            Log.d(TAG,
+                    "Skipping frame.  Could not find ByteBuffer associated with the image " +
+                            "data from the camera.");
+            return;
+        }
+
+        // Timestamp and frame ID are maintained here, which will give downstream code some
+        // idea of the timing of frames received and when frames were dropped along the way.
+        long timeMillis = SystemClock.elapsedRealtime() - mStartTimeMillis;
+        SharedFrame frame = new SharedFrame(buffer, ++mNextFrameId, timeMillis, mRecycler);
+        for (FrameProcessingRunnable processor : mProcessors) {
+            processor.offer(frame);
+        }
+        frame.release();
+    }
+
+    /**
+     * Takes one buffer for the camera preview callback from the {@link PreviewBufferPool}.  The
+     * size of the buffer is based off of the camera preview size and the format of the camera
+     * image.
+     *
+     * @return a preview buffer of the appropriate size for the current camera settings
+     */
+    private byte[] createPreviewBuffer(Size previewSize) {
+        //
+        // NOTICE: This code only works when using play services v. 8.1 or higher.
+        //
+
+        // Using a byte array and wrapping it, as opposed to using .allocate(), should guarantee
+        // that there will be an array to work with.
+        byte[] byteArray = PreviewBufferPool.getInstance().acquire(previewSize, ImageFormat.NV21);
+        ByteBuffer buffer = ByteBuffer.wrap(byteArray);
+        if (!buffer.hasArray() || (buffer.array() != byteArray)) {
+            // I don't think that this will ever happen.  But if it does, then we wouldn't be
+            // passing the preview content to the underlying detector later.
+            throw new IllegalStateException("Failed to create valid buffer for camera source.");
+        }
+
+        mBytesToByteBuffer.put(byteArray, buffer);
+        return byteArray;
+    }
+
+}
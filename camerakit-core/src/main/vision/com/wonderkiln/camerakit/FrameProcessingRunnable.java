@@ -1,253 +1,342 @@
 package com.wonderkiln.camerakit;
 
 import android.graphics.ImageFormat;
-import android.hardware.Camera;
+import android.graphics.Rect;
 import android.util.Log;
 
 import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.Frame;
 
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 /*
 Adapted/Copied from:
 https://github.com/googlesamples/android-vision/blob/master/visionSamples/ocr-codelab/ocr-reader-complete/app/src/main/java/com/google/android/gms/samples/vision/ocrreader/ui/camera/CameraSource.java#L1080
 */
 
 /**
- * This runnable controls access to the underlying receiver, calling it to process frames when
+ * This runnable controls access to one underlying receiver, calling it to process frames when
  * available from the camera.  This is designed to run detection on frames as fast as possible
- * (i.e., without unnecessary context switching or waiting on the next frame).
+ * (i.e., without unnecessary context switching or waiting on the next frame), or no faster than
+ * the target frame rate it was given.
  * <p/>
  * While detection is running on a frame, new frames may be received from the camera.  As these
  * frames come in, the most recent frame is held onto as pending.  As soon as detection and its
  * associated processing are done for the previous frame, detection on the mostly recently
  * received frame will immediately start on the same thread.
+ * <p/>
+ * The pending frame is a single atomic slot, so the camera callback thread never waits on the
+ * detector: it swaps the new frame in, releases any frame it displaced, and unparks the
+ * processing thread.  Frames are shared with the other detectors of the
+ * {@link FrameProcessingGraph}, each runnable only holds a reference.
  */
 public class FrameProcessingRunnable implements Runnable {
 
     private static final String TAG = FrameProcessingRunnable.class.getSimpleName();
+
+    // Weight of the newest sample in the detector latency average.
+    private static final double LATENCY_SMOOTHING = 0.2;
+
     private Detector<?> mDetector;
-    private long mStartTimeMillis = android.os.SystemClock.elapsedRealtime();
+    private Size mPreviewSize;
+
+    private final long mTargetFrameIntervalMillis;
+    private volatile float mDutyCycle;
+    private volatile double mAverageLatencyMillis;
+    private volatile long mFrameIntervalMillis;
+    private long mNextFrameMillis;
+
+    // Replaced as a whole so the processing thread never sees half of an update.
+    private volatile Crop mCrop;
 
-    // This lock guards all of the member variables below.
-    private final Object mLock = new Object();
-    private boolean mActive = true;
+    private volatile boolean mActive = false;
 
-    // These pending variables hold the state associated with the new frame awaiting processing.
-    private long mPendingTimeMillis;
-    private int mPendingFrameId = 0;
-    private java.nio.ByteBuffer mPendingFrameData;
-    private Thread mProcessingThread;
+    // Holds the newest frame awaiting processing, latest frame wins.
+    private final AtomicReference<SharedFrame> mPendingFrame = new AtomicReference<>();
+    private volatile Thread mProcessingThread;
+
+    private final AtomicLong mFramesReceived = new AtomicLong();
+    private final AtomicLong mFramesDropped = new AtomicLong();
+    private final AtomicLong mFramesProcessed = new AtomicLong();
 
     /**
-     * Map to convert between a byte array, received from the camera, and its associated byte
-     * buffer.  We use byte buffers internally because this is a more efficient way to call into
-     * native code later (avoids a potential copy).
+     * @param targetFps the most frames per second to hand to the detector, or 0 for as many as
+     *                  it can keep up with
+     * @param dutyCycle see {@link #setDutyCycle(float)}
      */
-    private Map<byte[], ByteBuffer> mBytesToByteBuffer = new HashMap<>();
-    private Size mPreviewSize;
-    private Camera mCamera;
-
-    public FrameProcessingRunnable(Detector<?> detector, Size mPreviewSize, Camera mCamera) {
+    public FrameProcessingRunnable(Detector<?> detector, Size previewSize, float targetFps, float dutyCycle) {
         mDetector = detector;
-        this.mPreviewSize = mPreviewSize;
-        this.mCamera = mCamera;
+        mPreviewSize = previewSize;
+        mTargetFrameIntervalMillis = targetFps > 0 ? (long) (1000 / targetFps) : 0;
+        mFrameIntervalMillis = mTargetFrameIntervalMillis;
+        mDutyCycle = dutyCycle;
+    }
+
+    /**
+     * Limits the detector to roughly this fraction of the time, between 0 and 1, by spacing out
+     * frames according to how long detection has been taking lately. 0 or 1 turns the limit off,
+     * leaving only the target frame rate.
+     */
+    public void setDutyCycle(float dutyCycle) {
+        mDutyCycle = dutyCycle;
+        updateFrameInterval();
+    }
+
+    public float getDutyCycle() {
+        return mDutyCycle;
+    }
+
+    /**
+     * Exponentially weighted moving average of how long the detector takes per frame.
+     */
+    public double getAverageLatencyMillis() {
+        return mAverageLatencyMillis;
+    }
+
+    /**
+     * The minimum time between frames currently handed to the detector, from the target frame
+     * rate and the duty cycle.
+     */
+    public long getFrameIntervalMillis() {
+        return mFrameIntervalMillis;
+    }
+
+    /**
+     * Hands the detector only {@code region} of each preview frame, shrunk by {@code downscale},
+     * instead of the whole frame. The region is in preview frame pixels and must satisfy
+     * {@link YuvOperator#crop(byte[], int, int, Rect, int, byte[])}. Detection results are then
+     * relative to the cropped frame. A null region with a downscale of 1 turns cropping off.
+     */
+    public void setCropRegion(Rect region, int downscale) {
+        if (region == null && downscale <= 1) {
+            mCrop = null;
+            return;
+        }
 
-        mProcessingThread = new Thread(this);
+        if (region == null) {
+            int align = 2 * downscale;
+            region = new Rect(0, 0, mPreviewSize.getWidth() / align * align, mPreviewSize.getHeight() / align * align);
+        }
+        mCrop = new Crop(region, Math.max(downscale, 1));
     }
 
     /**
-     * Releases the underlying receiver.  This is only safe to do after the associated thread
-     * has completed, which is managed in camera source's release method above.
+     * The part of the preview frame the detector sees, or null for all of it.
      */
-    @android.annotation.SuppressLint("Assert")
-    public void release() {
-        assert (mProcessingThread.getState() == Thread.State.TERMINATED);
-        mDetector.release();
+    public Rect getCropRegion() {
+        Crop crop = mCrop;
+        return crop != null ? new Rect(crop.region) : null;
+    }
+
+    public int getDownscale() {
+        Crop crop = mCrop;
+        return crop != null ? crop.downscale : 1;
+    }
+
+    public Detector<?> getDetector() {
+        return mDetector;
     }
 
     /**
      * As long as the processing thread is active, this executes detection on frames
      * continuously.  The next pending frame is either immediately available or hasn't been
-     * received yet.  Once it is available, we transfer the frame info to local variables and
-     * run detection on that frame.  It immediately loops back for the next frame without
-     * pausing.
+     * received yet.  Once it is available, we take it out of the pending slot and run detection
+     * on that frame.  It immediately loops back for the next frame without pausing.
      * <p/>
      * If detection takes longer than the time in between new frames from the camera, this will
-     * mean that this loop will run without ever waiting on a frame, avoiding any context
-     * switching or frame acquisition time latency.
+     * mean that this loop will run without ever parking, avoiding any context switching or
+     * frame acquisition time latency.
      * <p/>
-     * If you find that this is using more CPU than you'd like, you should probably decrease the
-     * FPS setting above to allow for some idle time in between frames.
+     * If you find that this is using more CPU than you'd like, lower the target frame rate or
+     * set a duty cycle to allow for some idle time in between frames.
      */
     @Override
     public void run() {
-        Frame outputFrame;
-        java.nio.ByteBuffer data;
-
-        while (true) {
-            synchronized (mLock) {
-                while (mActive && (mPendingFrameData == null)) {
-                    try {
-                        // Wait for the next frame to be received from the camera, since we
-                        // don't have it yet.
-                        mLock.wait();
-                    } catch (InterruptedException e) {
-                        return;
-                    }
-                }
-
-                if (!mActive) {
-                    // Exit the loop once this camera source is stopped or released.  We check
-                    // this here, immediately after the wait() above, to handle the case where
-                    // setActive(false) had been called, triggering the termination of this
-                    // loop.
+        while (mActive) {
+            SharedFrame pendingFrame = mPendingFrame.getAndSet(null);
+            if (pendingFrame == null) {
+                // Wait for the next frame to be received from the camera, since we don't have it
+                // yet.  Spurious wake ups just loop around and check again.
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
                     return;
                 }
+                continue;
+            }
+
+            // The frame is out of the pending slot now and we hold a reference to it, so its
+            // buffer can't go back to the camera while detection below is still reading it.
+            int frameId = pendingFrame.id;
+            long frameTimeMillis = pendingFrame.timeMillis;
+            Crop crop = mCrop;
+            byte[] cropBuffer = null;
+            try {
+                ByteBuffer data = pendingFrame.data;
+                int width = mPreviewSize.getWidth();
+                int height = mPreviewSize.getHeight();
+
+                if (crop != null) {
+                    cropBuffer = PreviewBufferPool.getInstance().acquire(crop.outputSize, ImageFormat.NV21);
+                    YuvOperator.crop(data.array(), width, height, crop.region, crop.downscale, cropBuffer);
 
-                if (mPreviewSize == null) {
-                    // wait for this to be  set
-                    Log.d("WHAT", "waitin for preview size to not be null");
-                    continue;
+                    // Detection only reads the copy, so the camera can have its buffer back now.
+                    pendingFrame.release();
+                    pendingFrame = null;
+
+                    data = ByteBuffer.wrap(cropBuffer);
+                    width = crop.outputSize.getWidth();
+                    height = crop.outputSize.getHeight();
                 }
 
-                outputFrame = new Frame.Builder()
-                        .setImageData(mPendingFrameData, mPreviewSize.getWidth(),
-                                mPreviewSize.getHeight(), android.graphics.ImageFormat.NV21)
-                        .setId(mPendingFrameId)
-                        .setTimestampMillis(mPendingTimeMillis)
+                Frame outputFrame = new Frame.Builder()
+                        .setImageData(data, width, height, ImageFormat.NV21)
+                        .setId(frameId)
+                        .setTimestampMillis(frameTimeMillis)
                         .setRotation(0)
                         .build();
 
-                // Hold onto the frame data locally, so that we can use this for detection
-                // below.  We need to clear mPendingFrameData to ensure that this buffer isn't
-                // recycled back to the camera before we are done using that data.
-                data = mPendingFrameData;
-                mPendingFrameData = null;
-            }
-
-            // The code below needs to run outside of synchronization, because this will allow
-            // The code below needs to run outside of synchronization, because this will allow
-            // the camera to add pending frame(s) while we are running detection on the current
-            // frame.
-
-            try {
+                long startNanos = System.nanoTime();
                 mDetector.receiveFrame(outputFrame);
+                recordLatency((System.nanoTime() - startNanos) / 1000000.0);
+                mFramesProcessed.incrementAndGet();
             } catch (Throwable t) {
                 Log.e(TAG, "Exception thrown from receiver.", t);
             } finally {
-                mCamera.addCallbackBuffer(data.array());
+                if (pendingFrame != null) {
+                    pendingFrame.release();
+                }
+                if (cropBuffer != null) {
+                    PreviewBufferPool.getInstance().release(crop.outputSize, ImageFormat.NV21, cropBuffer);
+                }
             }
         }
     }
 
-    public void cleanup() {
-        // stop text dectection thread
-        if (mProcessingThread != null) {
+    /**
+     * Number of frames accepted for this detector, within its frame rate budget.
+     */
+    public long getFramesReceived() {
+        return mFramesReceived.get();
+    }
+
+    /**
+     * Number of accepted frames that were replaced by a newer frame before detection got to
+     * them.
+     */
+    public long getFramesDropped() {
+        return mFramesDropped.get();
+    }
+
+    /**
+     * Number of frames the detector finished processing.
+     */
+    public long getFramesProcessed() {
+        return mFramesProcessed.get();
+    }
+
+    void start() {
+        mProcessingThread = new Thread(this, "CameraKitDetector");
+        mActive = true;
+        mProcessingThread.start();
+    }
+
+    void stop() {
+        // The processing thread has to be woken up before it can be joined.
+        setActive(false);
+        Thread processingThread = mProcessingThread;
+        if (processingThread != null) {
             try {
                 // Wait for the thread to complete to ensure that we can't have multiple threads
                 // executing at the same time (i.e., which would happen if we called start too
                 // quickly after stop).
-                mProcessingThread.join();
+                processingThread.join();
             } catch (InterruptedException e) {
                 Log.d(TAG, "Frame processing thread interrupted on release.");
             }
             mProcessingThread = null;
         }
 
-        setActive(false);
-        mBytesToByteBuffer.clear();
+        SharedFrame pendingFrame = mPendingFrame.getAndSet(null);
+        if (pendingFrame != null) {
+            pendingFrame.release();
+        }
     }
 
-    public void start() {
-        mProcessingThread = new Thread(this);
-        setActive(true);
-        mProcessingThread.start();
+    /**
+     * Offers a frame from the camera.  Called on the camera callback thread and never blocks.
+     * Frames that arrive sooner than the target frame rate allows are left alone; otherwise the
+     * frame is retained, swapped into the pending slot, and whatever it displaced is released.
+     */
+    void offer(SharedFrame frame) {
+        if (!mActive || frame.timeMillis < mNextFrameMillis) {
+            return;
+        }
 
-        mCamera.setPreviewCallbackWithBuffer(new Camera.PreviewCallback() {
-            @Override
-            public void onPreviewFrame(byte[] bytes, Camera camera) {
-                setNextFrame(bytes, camera);
-            }
-        });
-        mCamera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        mCamera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        mCamera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        mCamera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
+        // Scheduling from the previous due time rather than from this frame keeps the average
+        // rate on target even though camera frames don't line up with it.
+        mNextFrameMillis = Math.max(mNextFrameMillis + mFrameIntervalMillis, frame.timeMillis);
+        mFramesReceived.incrementAndGet();
+
+        frame.retain();
+        SharedFrame displaced = mPendingFrame.getAndSet(frame);
+        if (displaced != null) {
+            displaced.release();
+            mFramesDropped.incrementAndGet();
+        }
+
+        Thread processingThread = mProcessingThread;
+        if (processingThread != null) {
+            LockSupport.unpark(processingThread);
+        }
+    }
+
+    private void recordLatency(double latencyMillis) {
+        double average = mAverageLatencyMillis;
+        mAverageLatencyMillis = average == 0
+                ? latencyMillis
+                : average + LATENCY_SMOOTHING * (latencyMillis - average);
+        updateFrameInterval();
     }
 
     /**
-     * Marks the runnable as active/not active.  Signals any blocked threads to continue.
+     * A detector that takes L ms per frame uses a fraction D of the time when frames are L / D ms
+     * apart, so that is the interval the duty cycle asks for. The target frame rate still applies
+     * when it is the slower of the two.
      */
-    private void setActive(boolean active) {
-        synchronized (mLock) {
-            mActive = active;
-            mLock.notifyAll();
+    private void updateFrameInterval() {
+        long interval = mTargetFrameIntervalMillis;
+        float dutyCycle = mDutyCycle;
+        if (dutyCycle > 0 && dutyCycle < 1) {
+            interval = Math.max(interval, (long) (mAverageLatencyMillis / dutyCycle));
         }
+        mFrameIntervalMillis = interval;
     }
 
     /**
-     * Sets the frame data received from the camera.  This adds the previous unused frame buffer
-     * (if present) back to the camera, and keeps a pending reference to the frame data for
-     * future use.
+     * Marks the runnable as active/not active.  Wakes the processing thread so it notices.
      */
-    private void setNextFrame(byte[] data, Camera camera) {
-        synchronized (mLock) {
-            if (mPendingFrameData != null) {
-                camera.addCallbackBuffer(mPendingFrameData.array());
-                mPendingFrameData = null;
-            }
-
-            if (!mBytesToByteBuffer.containsKey(data)) {
-                Log.d(TAG,
-                        "Skipping frame.  Could not find ByteBuffer associated with the image " +
-                                "data from the camera.");
-                return;
-            }
-
-            // Timestamp and frame ID are maintained here, which will give downstream code some
-            // idea of the timing of frames received and when frames were dropped along the way.
-            mPendingTimeMillis = android.os.SystemClock.elapsedRealtime() - mStartTimeMillis;
-            mPendingFrameId++;
-            mPendingFrameData = mBytesToByteBuffer.get(data);
-
-            // Notify the processor thread if it is waiting on the next frame (see below).
-            mLock.notifyAll();
+    private void setActive(boolean active) {
+        mActive = active;
+        Thread processingThread = mProcessingThread;
+        if (processingThread != null) {
+            LockSupport.unpark(processingThread);
         }
     }
 
-    private void addBuffer(byte[] byteArray, ByteBuffer buffer) {
-        mBytesToByteBuffer.put(byteArray, buffer);
-    }
+    private static class Crop {
 
-    /**
-     * Creates one buffer for the camera preview callback.  The size of the buffer is based off of
-     * the camera preview size and the format of the camera image.
-     *
-     * @return a new preview buffer of the appropriate size for the current camera settings
-     */
-    private byte[] createPreviewBuffer(Size previewSize) {
-        int bitsPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.NV21);
-        long sizeInBits = previewSize.getHeight() * previewSize.getWidth() * bitsPerPixel;
-        int bufferSize = (int) Math.ceil(sizeInBits / 8.0d) + 1;
-
-        //
-        // NOTICE: This code only works when using play services v. 8.1 or higher.
-        //
-
-        // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
-        // should guarantee that there will be an array to work with.
-        byte[] byteArray = new byte[bufferSize];
-        ByteBuffer buffer = ByteBuffer.wrap(byteArray);
-        if (!buffer.hasArray() || (buffer.array() != byteArray)) {
-            // I don't think that this will ever happen.  But if it does, then we wouldn't be
-            // passing the preview content to the underlying detector later.
-            throw new IllegalStateException("Failed to create valid buffer for camera source.");
+        final Rect region;
+        final int downscale;
+        final Size outputSize;
+
+        Crop(Rect region, int downscale) {
+            this.region = new Rect(region);
+            this.downscale = downscale;
+            this.outputSize = new Size(region.width() / downscale, region.height() / downscale);
         }
 
-        addBuffer(byteArray, buffer);
-        return byteArray;
     }
+
 }
@@ -0,0 +1,42 @@
+package com.wonderkiln.camerakit;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One preview frame shared by every detector that accepted it. Consumers only read the buffer.
+ * It goes back to the camera once the last reference is released.
+ */
+class SharedFrame {
+
+    interface Recycler {
+        void recycle(ByteBuffer data);
+    }
+
+    final ByteBuffer data;
+    final int id;
+    final long timeMillis;
+
+    private final Recycler mRecycler;
+
+    // Starts out held by whoever is fanning the frame out.
+    private final AtomicInteger mReferences = new AtomicInteger(1);
+
+    SharedFrame(ByteBuffer data, int id, long timeMillis, Recycler recycler) {
+        this.data = data;
+        this.id = id;
+        this.timeMillis = timeMillis;
+        this.mRecycler = recycler;
+    }
+
+    void retain() {
+        mReferences.incrementAndGet();
+    }
+
+    void release() {
+        if (mReferences.decrementAndGet() == 0) {
+            mRecycler.recycle(data);
+        }
+    }
+
+}
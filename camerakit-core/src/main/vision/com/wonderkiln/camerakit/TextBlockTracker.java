@@ -0,0 +1,311 @@
+package com.wonderkiln.camerakit;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Follows text blocks from frame to frame so only differences have to be reported. Blocks are
+ * matched to the previous frame's by how much their bounding boxes overlap (intersection over
+ * union) and how similar their text is, and keep the same id while they're matched.
+ * <p/>
+ * Recognition flickers, so a block has to be seen in a few frames in a row before it appears,
+ * new text has to hold for as many frames before it counts as a change, and a block has to be
+ * missing for a few frames before it disappears. Only called from the detector thread; the
+ * setters may be called from anywhere.
+ */
+public class TextBlockTracker {
+
+    private static final int DEFAULT_APPEAR_FRAMES = 2;
+    private static final int DEFAULT_DISAPPEAR_FRAMES = 3;
+    private static final float DEFAULT_MIN_OVERLAP = 0.3f;
+    private static final float DEFAULT_MIN_TEXT_SIMILARITY = 0.5f;
+    private static final float DEFAULT_MOVE_OVERLAP = 0.7f;
+
+    private volatile int mAppearFrames = DEFAULT_APPEAR_FRAMES;
+    private volatile int mDisappearFrames = DEFAULT_DISAPPEAR_FRAMES;
+    private volatile float mMinOverlap = DEFAULT_MIN_OVERLAP;
+    private volatile float mMinTextSimilarity = DEFAULT_MIN_TEXT_SIMILARITY;
+    private volatile float mMoveOverlap = DEFAULT_MOVE_OVERLAP;
+
+    private final List<Track> mTracks = new ArrayList<>();
+    private int mNextId = 1;
+
+    /**
+     * Consecutive frames a block, or a change to its text, has to be seen in before it's
+     * reported. 1 reports everything straight away.
+     */
+    public void setAppearFrames(int appearFrames) {
+        mAppearFrames = Math.max(appearFrames, 1);
+    }
+
+    public int getAppearFrames() {
+        return mAppearFrames;
+    }
+
+    /**
+     * Consecutive frames a block can go undetected before it's reported gone. 0 reports it gone
+     * the first frame it's missing.
+     */
+    public void setDisappearFrames(int disappearFrames) {
+        mDisappearFrames = Math.max(disappearFrames, 0);
+    }
+
+    public int getDisappearFrames() {
+        return mDisappearFrames;
+    }
+
+    /**
+     * Bounding box overlap, between 0 and 1, at which a block is the same as one from the last
+     * frame regardless of its text. Blocks that overlap less still match when their text is at
+     * least {@link #setMinTextSimilarity(float) this similar}.
+     */
+    public void setMinOverlap(float minOverlap) {
+        mMinOverlap = minOverlap;
+    }
+
+    public float getMinOverlap() {
+        return mMinOverlap;
+    }
+
+    /**
+     * Text similarity, between 0 and 1, from edit distance relative to the longer text.
+     */
+    public void setMinTextSimilarity(float minTextSimilarity) {
+        mMinTextSimilarity = minTextSimilarity;
+    }
+
+    public float getMinTextSimilarity() {
+        return mMinTextSimilarity;
+    }
+
+    /**
+     * A tracked block whose box overlaps the last reported one by less than this has moved, and
+     * is reported as changed.
+     */
+    public void setMoveOverlap(float moveOverlap) {
+        mMoveOverlap = moveOverlap;
+    }
+
+    public float getMoveOverlap() {
+        return mMoveOverlap;
+    }
+
+    /**
+     * Forgets every tracked block without reporting them as gone.
+     */
+    public void reset() {
+        mTracks.clear();
+    }
+
+    /**
+     * Matches one frame's blocks against the tracked ones.
+     *
+     * @return the changes since the last call, or null if there were none
+     */
+    CameraKitTextChanges update(List<CameraKitTextBlock> textBlocks, int frameId, long timestampMillis) {
+        int appearFrames = mAppearFrames;
+        float minOverlap = mMinOverlap;
+        float minTextSimilarity = mMinTextSimilarity;
+
+        List<Rect> boxes = new ArrayList<>(textBlocks.size());
+        List<String> texts = new ArrayList<>(textBlocks.size());
+        for (CameraKitTextBlock textBlock : textBlocks) {
+            Rect box = textBlock.getBoundingBox();
+            boxes.add(box != null ? box : new Rect());
+            texts.add(textBlock.getText());
+        }
+
+        // Greedy assignment, best scoring pairs first. There are rarely more than a few dozen
+        // blocks, and text is only compared for boxes that overlap at all.
+        List<Match> candidates = new ArrayList<>();
+        for (int t = 0; t < mTracks.size(); t++) {
+            Track track = mTracks.get(t);
+            for (int b = 0; b < textBlocks.size(); b++) {
+                float overlap = overlap(track.box, boxes.get(b));
+                if (overlap <= 0) continue;
+
+                float similarity = similarity(track.text, texts.get(b));
+                if (overlap >= minOverlap || similarity >= minTextSimilarity) {
+                    candidates.add(new Match(t, b, overlap + similarity));
+                }
+            }
+        }
+
+        Collections.sort(candidates, new Comparator<Match>() {
+            @Override
+            public int compare(Match a, Match b) {
+                return Float.compare(b.score, a.score);
+            }
+        });
+
+        Track[] trackForBlock = new Track[textBlocks.size()];
+        boolean[] trackMatched = new boolean[mTracks.size()];
+        for (Match match : candidates) {
+            if (trackMatched[match.track] || trackForBlock[match.block] != null) continue;
+            trackMatched[match.track] = true;
+            trackForBlock[match.block] = mTracks.get(match.track);
+        }
+
+        List<CameraKitTrackedText> appeared = new ArrayList<>();
+        List<CameraKitTrackedText> changed = new ArrayList<>();
+        List<CameraKitTrackedText> disappeared = new ArrayList<>();
+
+        // Unmatched tracks first, before new ones are added to the list.
+        int disappearFrames = mDisappearFrames;
+        int index = 0;
+        for (Iterator<Track> iterator = mTracks.iterator(); iterator.hasNext(); index++) {
+            Track track = iterator.next();
+            if (trackMatched[index]) continue;
+
+            track.seenFrames = 0;
+            if (++track.missedFrames > disappearFrames) {
+                iterator.remove();
+                if (track.reported != null) {
+                    disappeared.add(track.reported);
+                }
+            }
+        }
+
+        for (int b = 0; b < textBlocks.size(); b++) {
+            Track track = trackForBlock[b];
+            if (track == null) {
+                track = new Track(mNextId++);
+                mTracks.add(track);
+            }
+
+            track.textBlock = textBlocks.get(b);
+            track.box = boxes.get(b);
+            track.text = texts.get(b);
+            track.missedFrames = 0;
+            track.seenFrames++;
+
+            if (track.reported == null) {
+                if (track.seenFrames >= appearFrames) {
+                    appeared.add(track.report());
+                }
+            } else if (!track.text.equals(track.reported.getText())) {
+                if (track.text.equals(track.pendingText)) {
+                    track.pendingFrames++;
+                } else {
+                    track.pendingText = track.text;
+                    track.pendingFrames = 1;
+                }
+
+                if (track.pendingFrames >= appearFrames) {
+                    changed.add(track.report());
+                }
+            } else {
+                track.pendingText = null;
+                if (overlap(track.box, track.reported.getBoundingBox()) < mMoveOverlap) {
+                    changed.add(track.report());
+                }
+            }
+        }
+
+        if (appeared.isEmpty() && changed.isEmpty() && disappeared.isEmpty()) {
+            return null;
+        }
+
+        return new CameraKitTextChanges(appeared, changed, disappeared, frameId, timestampMillis);
+    }
+
+    /**
+     * Intersection over union of two boxes.
+     */
+    private static float overlap(Rect a, Rect b) {
+        int width = Math.min(a.right, b.right) - Math.max(a.left, b.left);
+        int height = Math.min(a.bottom, b.bottom) - Math.max(a.top, b.top);
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+
+        long intersection = (long) width * height;
+        long union = (long) a.width() * a.height() + (long) b.width() * b.height() - intersection;
+        return union > 0 ? (float) intersection / union : 0;
+    }
+
+    /**
+     * 1 minus the Levenshtein distance over the length of the longer text.
+     */
+    private static float similarity(String a, String b) {
+        int longest = Math.max(a.length(), b.length());
+        if (longest == 0) {
+            return 1;
+        }
+        if (a.equals(b)) {
+            return 1;
+        }
+
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            char c = a.charAt(i - 1);
+            for (int j = 1; j <= b.length(); j++) {
+                int substitution = previous[j - 1] + (c == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+            }
+
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        return 1 - (float) previous[b.length()] / longest;
+    }
+
+    private static class Track {
+
+        final int id;
+
+        CameraKitTextBlock textBlock;
+        Rect box;
+        String text;
+
+        int seenFrames;
+        int missedFrames;
+
+        // Text seen in place of the reported text, and for how many frames in a row.
+        String pendingText;
+        int pendingFrames;
+
+        // As of the last event, null until the track has appeared.
+        CameraKitTrackedText reported;
+
+        Track(int id) {
+            this.id = id;
+        }
+
+        CameraKitTrackedText report() {
+            reported = new CameraKitTrackedText(id, textBlock, text, new Rect(box));
+            pendingText = null;
+            pendingFrames = 0;
+            return reported;
+        }
+
+    }
+
+    private static class Match {
+
+        final int track;
+        final int block;
+        final float score;
+
+        Match(int track, int block, float score) {
+            this.track = track;
+            this.block = block;
+            this.score = score;
+        }
+
+    }
+
+}
@@ -3,34 +3,125 @@ package com.wonderkiln.camerakit;
 import android.util.SparseArray;
 
 import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
 import com.google.android.gms.vision.text.TextBlock;
 
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns the text recognizer's results into events. Each frame with text in it is dispatched as
+ * one {@link CameraKitTextDetections}, so the main thread handles one event per frame however
+ * much text is on screen. A {@link CameraKitTextDetect} per block can still be dispatched too.
+ * With a {@link TextBlockTracker}, only {@link CameraKitTextChanges} are dispatched instead.
+ */
 public class TextProcessor implements Detector.Processor<TextBlock> {
 
     private EventDispatcher mEventDispatcher;
     private CameraKitEventCallback<CameraKitTextDetect> callback;
+    private CameraKitEventCallback<CameraKitTextDetections> detectionsCallback;
+    private CameraKitEventCallback<CameraKitTextChanges> changesCallback;
+    private TextBlockTracker mTracker;
+
+    private volatile boolean mDispatchTextBlocks;
+    private boolean mLastFrameHadText;
 
+    /**
+     * Calls {@code callback} for every block, and also dispatches it as a
+     * {@link CameraKitTextDetect} alongside the per-frame batch.
+     */
     public TextProcessor(EventDispatcher mEventDispatcher, CameraKitEventCallback<CameraKitTextDetect> callback) {
         this.mEventDispatcher = mEventDispatcher;
         this.callback = callback;
+        this.mDispatchTextBlocks = true;
+    }
+
+    /**
+     * Only delivers the per-frame batch, to {@code detectionsCallback} and the event dispatcher.
+     */
+    public static TextProcessor forDetections(EventDispatcher eventDispatcher,
+                                              CameraKitEventCallback<CameraKitTextDetections> detectionsCallback) {
+        TextProcessor processor = new TextProcessor(eventDispatcher, null);
+        processor.detectionsCallback = detectionsCallback;
+        processor.mDispatchTextBlocks = false;
+        return processor;
+    }
+
+    /**
+     * Only delivers what {@code tracker} finds has changed, to {@code changesCallback} and the
+     * event dispatcher. Nothing is sent for frames where the text stayed put.
+     */
+    public static TextProcessor forTracking(EventDispatcher eventDispatcher, TextBlockTracker tracker,
+                                            CameraKitEventCallback<CameraKitTextChanges> changesCallback) {
+        TextProcessor processor = new TextProcessor(eventDispatcher, null);
+        processor.mTracker = tracker;
+        processor.changesCallback = changesCallback;
+        processor.mDispatchTextBlocks = false;
+        return processor;
+    }
+
+    /**
+     * Whether every block is also dispatched as its own {@link CameraKitTextDetect}, costing a
+     * main thread post per block.
+     */
+    public void setDispatchTextBlocks(boolean dispatchTextBlocks) {
+        mDispatchTextBlocks = dispatchTextBlocks;
+    }
+
+    public boolean getDispatchTextBlocks() {
+        return mDispatchTextBlocks;
     }
 
     @Override
     public void release() {
+        if (mTracker != null) {
+            mTracker.reset();
+        }
     }
 
     @Override
     public void receiveDetections(Detector.Detections<TextBlock> detections) {
-
         SparseArray<TextBlock> detectedItems = detections.getDetectedItems();
+        List<CameraKitTextBlock> textBlocks = new ArrayList<>(detectedItems.size());
+        boolean dispatchTextBlocks = mDispatchTextBlocks;
+
         for (int i = 0; i < detectedItems.size(); ++i) {
             TextBlock item = detectedItems.valueAt(i);
             if (item != null && item.getValue() != null) {
-                CameraKitTextDetect event = new CameraKitTextDetect(new CameraKitTextBlock(item));
-                mEventDispatcher.dispatch(event);
-                callback.callback(event);
+                CameraKitTextBlock textBlock = new CameraKitTextBlock(item);
+                textBlocks.add(textBlock);
+
+                if (callback != null || dispatchTextBlocks) {
+                    CameraKitTextDetect event = new CameraKitTextDetect(textBlock);
+                    if (dispatchTextBlocks) mEventDispatcher.dispatch(event);
+                    if (callback != null) callback.callback(event);
+                }
+            }
+        }
+
+        Frame.Metadata metadata = detections.getFrameMetadata();
+        int frameId = metadata != null ? metadata.getId() : 0;
+        long timestampMillis = metadata != null ? metadata.getTimestampMillis() : 0;
+
+        if (mTracker != null) {
+            CameraKitTextChanges changes = mTracker.update(textBlocks, frameId, timestampMillis);
+            if (changes != null) {
+                mEventDispatcher.dispatch(changes);
+                if (changesCallback != null) changesCallback.callback(changes);
             }
+            return;
         }
+
+        // Empty frames are skipped, except for the first one after text disappears.
+        boolean hasText = !textBlocks.isEmpty();
+        if (!hasText && !mLastFrameHadText) {
+            return;
+        }
+        mLastFrameHadText = hasText;
+
+        CameraKitTextDetections event = new CameraKitTextDetections(textBlocks, frameId, timestampMillis);
+        mEventDispatcher.dispatch(event);
+        if (detectionsCallback != null) detectionsCallback.callback(event);
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,22 @@
+#include <stdarg.h>
+#include <stdio.h>
+
+#include <android/log.h>
+
+extern "C" {
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...) {
+    va_list args;
+    va_start(args, fmt);
+    fprintf(stderr, "%d %s: ", prio, tag);
+    int written = vfprintf(stderr, fmt, args);
+    fputc('\n', stderr);
+    va_end(args);
+    return written;
+}
+
+// Bionic's stdio streams, referenced by the bundled libjpeg-turbo's default message output.
+// Nothing under test prints through it, so they only have to resolve.
+char __sF[3 * 256];
+
+}
@@ -0,0 +1,290 @@
+// Checks that JniJpegTransformer.cpp's single-pass transform, built from COMBINED_TRANSFORM_OPS,
+// decodes to the same image as the multi-pass transform it replaced: a vertical flip pass, a
+// horizontal flip pass, then a rotation pass that also crops. Covers every entry of the table and
+// every EXIF orientation for both facings the way PostProcessor queues them, each with and
+// without a center crop. The source is included so its static functions can be called directly.
+
+#include "../../main/cpp/JniJpegTransformer.cpp"
+
+#include <cstdio>
+#include <cstdlib>
+#include <vector>
+
+static int sFailures = 0;
+static int sChecks = 0;
+
+struct Image {
+    int width;
+    int height;
+    std::vector<unsigned char> rgb;
+};
+
+static std::vector<unsigned char> encode(int width, int height, int subsamp) {
+    std::vector<unsigned char> rgb((size_t) (width * height * 3));
+    unsigned seed = (unsigned) (width * 31 + height);
+    for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+            seed = seed * 1103515245u + 12345u;
+            unsigned char *pixel = &rgb[(size_t) ((y * width + x) * 3)];
+            // A gradient that differs in every direction plus some noise, so no flip or rotation
+            // decodes to the same image as another.
+            pixel[0] = (unsigned char) (x * 255 / width);
+            pixel[1] = (unsigned char) (y * 255 / height);
+            pixel[2] = (unsigned char) ((x * y + (seed >> 24)) & 0xff);
+        }
+    }
+
+    tjhandle compressor = tjInitCompress();
+    unsigned char *jpeg = NULL;
+    unsigned long jpegSize = 0;
+    if (tjCompress2(compressor, rgb.data(), width, 0, height, TJPF_RGB, &jpeg, &jpegSize,
+                    subsamp, 90, 0) != 0) {
+        fprintf(stderr, "Unable to encode test image: %s\n", tjGetErrorStr());
+        exit(2);
+    }
+    tjDestroy(compressor);
+
+    std::vector<unsigned char> result(jpeg, jpeg + jpegSize);
+    tjFree(jpeg);
+    return result;
+}
+
+static bool decode(const unsigned char *jpeg, unsigned long jpegSize, Image *image) {
+    tjhandle decompressor = tjInitDecompress();
+    int subsamp;
+    bool decoded = tjDecompressHeader2(decompressor, (unsigned char *) jpeg, jpegSize,
+                                       &image->width, &image->height, &subsamp) == 0;
+    if (decoded) {
+        image->rgb.resize((size_t) (image->width * image->height * 3));
+        decoded = tjDecompress2(decompressor, (unsigned char *) jpeg, jpegSize, image->rgb.data(), image->width, 0,
+                                image->height, TJPF_RGB, 0) == 0;
+    }
+    tjDestroy(decompressor);
+    return decoded;
+}
+
+/**
+ * The transform jniCommit ran before the passes were combined.
+ */
+static std::vector<unsigned char> legacyTransform(const std::vector<unsigned char> &jpeg,
+                                                  const JpegTransformer &queued) {
+    tjhandle tjHandle = tjInitTransform();
+    std::vector<unsigned char> current = jpeg;
+
+    std::vector<tjtransform> passes;
+    if (queued.flipVertical) {
+        tjtransform transform;
+        memset(&transform, 0, sizeof(tjtransform));
+        transform.op = TJXOP_VFLIP;
+        passes.push_back(transform);
+    }
+
+    if (queued.flipHorizontal) {
+        tjtransform transform;
+        memset(&transform, 0, sizeof(tjtransform));
+        transform.op = TJXOP_HFLIP;
+        passes.push_back(transform);
+    }
+
+    tjtransform transform;
+    memset(&transform, 0, sizeof(tjtransform));
+    if (queued.rotation == 90) {
+        transform.op = TJXOP_ROT90;
+    } else if (queued.rotation == 180) {
+        transform.op = TJXOP_ROT180;
+    } else if (queued.rotation == 270) {
+        transform.op = TJXOP_ROT270;
+    }
+
+    if (queued.cropWidth > 0) {
+        transform.r.x = queued.cropLeft - (queued.cropLeft % 16);
+        transform.r.y = queued.cropTop - (queued.cropTop % 16);
+        transform.r.w = queued.cropWidth;
+        transform.r.h = queued.cropHeight;
+        transform.options = TJXOPT_CROP;
+    }
+    passes.push_back(transform);
+
+    for (size_t i = 0; i < passes.size(); i++) {
+        unsigned char *output = NULL;
+        unsigned long outputSize = 0;
+        if (tjTransform(tjHandle, current.data(), current.size(), 1, &output, &outputSize,
+                        &passes[i], 0) == 0) {
+            current.assign(output, output + outputSize);
+        }
+        tjFree(output);
+    }
+
+    tjDestroy(tjHandle);
+    return current;
+}
+
+enum Crop {
+    CROP_NONE,
+    CROP_SQUARE,
+    CROP_WIDE,
+};
+
+/**
+ * Queues a center crop the way PostProcessor's CenterCrop does, in the coordinates of the
+ * rotated image.
+ */
+static void queueCrop(JpegTransformer *queued, Crop crop) {
+    if (crop == CROP_NONE) return;
+
+    bool swapped = queued->rotation == 90 || queued->rotation == 270;
+    int width = swapped ? queued->height : queued->width;
+    int height = swapped ? queued->width : queued->height;
+    float targetRatio = crop == CROP_SQUARE ? 1.f : 16.f / 9.f;
+
+    if ((float) width / height > targetRatio) {
+        int cropWidth = (int) (height * targetRatio);
+        int offset = (width - cropWidth) / 2;
+        queued->cropLeft = offset;
+        queued->cropTop = 0;
+        queued->cropWidth = width - 2 * offset;
+        queued->cropHeight = height;
+    } else {
+        int cropHeight = (int) (width / targetRatio);
+        int offset = (height - cropHeight) / 2;
+        queued->cropLeft = 0;
+        queued->cropTop = offset;
+        queued->cropWidth = width;
+        queued->cropHeight = height - 2 * offset;
+    }
+}
+
+static void check(const std::vector<unsigned char> &jpeg, const char *source, int rotation,
+                  bool flipHorizontal, bool flipVertical, Crop crop) {
+    std::vector<unsigned char> input = jpeg;
+    JpegTransformer *queued = createJpegTransformer(input.data(), input.size());
+    queued->rotation = rotation;
+    queued->flipHorizontal = flipHorizontal;
+    queued->flipVertical = flipVertical;
+    queueCrop(queued, crop);
+
+    std::vector<unsigned char> expectedJpeg = legacyTransform(jpeg, *queued);
+
+    unsigned char *actualJpeg;
+    unsigned long actualJpegSize;
+    transformJpeg(queued, &actualJpeg, &actualJpegSize);
+
+    Image expected, actual;
+    bool decoded = decode(expectedJpeg.data(), expectedJpeg.size(), &expected)
+                   && decode(actualJpeg, actualJpegSize, &actual);
+    sChecks++;
+
+    if (!decoded || expected.width != actual.width || expected.height != actual.height
+        || expected.rgb != actual.rgb) {
+        fprintf(stderr, "FAIL %s rotation %d hflip %d vflip %d crop %d: ", source, rotation,
+                flipHorizontal, flipVertical, crop);
+        if (!decoded) {
+            fprintf(stderr, "undecodable output\n");
+        } else {
+            fprintf(stderr, "%dx%d, expected %dx%d%s\n", actual.width, actual.height,
+                    expected.width, expected.height,
+                    expected.width == actual.width && expected.height == actual.height
+                    ? " with different pixels" : "");
+        }
+        sFailures++;
+    }
+
+    delete queued;
+}
+
+/**
+ * What PostProcessor queues for an EXIF orientation, before the front camera's mirroring.
+ */
+static void exifOperations(int orientation, int *rotation, bool *flipHorizontal,
+                           bool *flipVertical) {
+    *rotation = 0;
+    *flipHorizontal = false;
+    *flipVertical = false;
+
+    switch (orientation) {
+        case 2: // ORIENTATION_FLIP_HORIZONTAL
+            *flipHorizontal = true;
+            break;
+        case 3: // ORIENTATION_ROTATE_180
+            *rotation = 180;
+            break;
+        case 4: // ORIENTATION_FLIP_VERTICAL
+            *flipVertical = true;
+            break;
+        case 5: // ORIENTATION_TRANSPOSE
+            *rotation = 90;
+            *flipHorizontal = true;
+            break;
+        case 6: // ORIENTATION_ROTATE_90
+            *rotation = 90;
+            break;
+        case 7: // ORIENTATION_TRANSVERSE
+            *rotation = 270;
+            *flipHorizontal = true;
+            break;
+        case 8: // ORIENTATION_ROTATE_270
+            *rotation = 270;
+            break;
+        default: // ORIENTATION_NORMAL, ORIENTATION_UNDEFINED
+            break;
+    }
+}
+
+int main() {
+    struct Source {
+        int width;
+        int height;
+        int subsamp;
+    };
+    static const Source sources[] = {
+            {640,  480,  TJSAMP_420},
+            {480,  640,  TJSAMP_420},
+            // Whole MCUs only at 4:4:4, partial MCUs on both edges at 4:2:0.
+            {648,  488,  TJSAMP_420},
+            {648,  488,  TJSAMP_444},
+            {1280, 720,  TJSAMP_422},
+    };
+    static const int rotations[] = {0, 90, 180, 270};
+    static const Crop crops[] = {CROP_NONE, CROP_SQUARE, CROP_WIDE};
+
+    for (size_t s = 0; s < sizeof(sources) / sizeof(sources[0]); s++) {
+        std::vector<unsigned char> jpeg = encode(sources[s].width, sources[s].height,
+                                                 sources[s].subsamp);
+        char name[64];
+        snprintf(name, sizeof(name), "%dx%d subsamp %d", sources[s].width, sources[s].height,
+                 sources[s].subsamp);
+
+        // Every entry of COMBINED_TRANSFORM_OPS.
+        for (int r = 0; r < 4; r++) {
+            for (int h = 0; h < 2; h++) {
+                for (int v = 0; v < 2; v++) {
+                    for (int c = 0; c < 3; c++) {
+                        check(jpeg, name, rotations[r], h == 1, v == 1, crops[c]);
+                    }
+                }
+            }
+        }
+
+        // Every EXIF orientation for the back and the mirrored front camera.
+        for (int orientation = 0; orientation <= 8; orientation++) {
+            for (int front = 0; front < 2; front++) {
+                for (int c = 0; c < 3; c++) {
+                    int rotation;
+                    bool flipHorizontal, flipVertical;
+                    exifOperations(orientation, &rotation, &flipHorizontal, &flipVertical);
+                    if (front) flipHorizontal = true;
+
+                    check(jpeg, name, rotation, flipHorizontal, flipVertical, crops[c]);
+                }
+            }
+        }
+    }
+
+    if (sFailures > 0) {
+        fprintf(stderr, "%d of %d transforms differ\n", sFailures, sChecks);
+        return 1;
+    }
+
+    printf("All %d transforms match the multi-pass output.\n", sChecks);
+    return 0;
+}
@@ -0,0 +1,81 @@
+#ifndef CAMERAKIT_LEGACY_YUV_ROTATION_H
+#define CAMERAKIT_LEGACY_YUV_ROTATION_H
+
+#include <vector>
+
+/**
+ * The per-pixel NV21 rotations JniYuvOperator shipped with before the tiled kernels, kept as
+ * the reference output. They rotate in place and leave everything past the chroma plane alone.
+ */
+namespace legacy {
+
+static void rotateYuvCcw90(unsigned char *yuv, int width, int height, int length) {
+    std::vector<unsigned char> yuvCopy(yuv, yuv + length);
+
+    int n = 0;
+    int uvHeight = height >> 1;
+    int wh = width * height;
+    for (int j = width - 1; j >= 0; j--) {
+        for (int i = 0; i < height; i++) {
+            yuv[n++] = yuvCopy[width * i + j];
+        }
+    }
+
+    for (int j = width - 1; j > 0; j -= 2) {
+        for (int i = 0; i < uvHeight; i++) {
+            yuv[n++] = yuvCopy[wh + width * i + j - 1];
+            yuv[n++] = yuvCopy[wh + width * i + j];
+        }
+    }
+}
+
+static void rotateYuvCw90(unsigned char *yuv, int width, int height, int length) {
+    std::vector<unsigned char> yuvCopy(yuv, yuv + length);
+
+    int wh = width * height;
+    int k = 0;
+    for (int i = 0; i < width; i++) {
+        for (int j = height - 1; j >= 0; j--) {
+            yuv[k] = yuvCopy[width * j + i];
+            k++;
+        }
+    }
+    for (int i = 0; i < width; i += 2) {
+        for (int j = height / 2 - 1; j >= 0; j--) {
+            yuv[k] = yuvCopy[wh + width * j + i];
+            yuv[k + 1] = yuvCopy[wh + width * j + i + 1];
+            k += 2;
+        }
+    }
+}
+
+static void rotateYuv180(unsigned char *yuv, int width, int height, int length) {
+    std::vector<unsigned char> yuvCopy(yuv, yuv + length);
+
+    int n = 0;
+    int uh = height >> 1;
+    int wh = width * height;
+    for (int j = height - 1; j >= 0; j--) {
+        for (int i = width - 1; i >= 0; i--) {
+            yuv[n++] = yuvCopy[width * j + i];
+        }
+    }
+
+    for (int j = uh - 1; j >= 0; j--) {
+        for (int i = width - 1; i > 0; i -= 2) {
+            yuv[n] = yuvCopy[wh + width * j + i - 1];
+            yuv[n + 1] = yuvCopy[wh + width * j + i];
+            n += 2;
+        }
+    }
+}
+
+static void rotateYuv(unsigned char *yuv, int width, int height, int length, int rotation) {
+    if (rotation == 90) rotateYuvCw90(yuv, width, height, length);
+    else if (rotation == 180) rotateYuv180(yuv, width, height, length);
+    else if (rotation == 270) rotateYuvCcw90(yuv, width, height, length);
+}
+
+}
+
+#endif
@@ -0,0 +1,38 @@
+// The native side of camerakit-benchmark's RotationBenchmark: JniYuvOperator.cpp's rotation
+// kernels writing into a caller supplied array, so the Java and native rotations are timed
+// doing the same work. Runs on the calling thread only, which makes it a per core comparison.
+
+#include "../../main/cpp/JniYuvOperator.cpp"
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_wonderkiln_camerakit_benchmark_NativeRotation_rotate(JNIEnv *env, jclass clazz,
+                                                              jbyteArray yuv, jint width,
+                                                              jint height, jint rotation,
+                                                              jbyteArray output) {
+    int length = env->GetArrayLength(yuv);
+    int wh = width * height;
+    if (length < wh + wh / 2 || env->GetArrayLength(output) < length) return;
+
+    unsigned char *src = (unsigned char *) env->GetPrimitiveArrayCritical(yuv, NULL);
+    if (src == NULL) return;
+    unsigned char *dst = (unsigned char *) env->GetPrimitiveArrayCritical(output, NULL);
+    if (dst == NULL) {
+        env->ReleasePrimitiveArrayCritical(yuv, src, JNI_ABORT);
+        return;
+    }
+
+    int dstWidth = rotation == 180 ? width : height;
+    PlaneWriter<unsigned char> yWriter = {dst, dstWidth, 0};
+    PlaneWriter<VuPair> vuWriter = {(VuPair *) (dst + wh), dstWidth / 2, 0};
+
+    rotatePlane(src, width, height, yWriter, rotation, false);
+    rotatePlane((const VuPair *) (src + wh), width / 2, height / 2, vuWriter, rotation, false);
+
+    int tail = wh + wh / 2;
+    if (length > tail) {
+        memcpy(dst + tail, src + tail, (size_t) (length - tail));
+    }
+
+    env->ReleasePrimitiveArrayCritical(output, dst, 0);
+    env->ReleasePrimitiveArrayCritical(yuv, src, JNI_ABORT);
+}
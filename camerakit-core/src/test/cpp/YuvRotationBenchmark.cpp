@@ -0,0 +1,82 @@
+// Times the tiled, pooled NV21 rotation in JniYuvOperator.cpp against the legacy per-pixel
+// rotation it replaced, for the frame sizes METHOD_STILL captures at.
+
+#include "../../main/cpp/JniYuvOperator.cpp"
+
+#include <cstdio>
+#include <ctime>
+#include <vector>
+
+#include "LegacyYuvRotation.h"
+
+static double nowMillis() {
+    timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+// Best of several runs, which is steadier than the mean on a busy machine.
+static double timeLegacy(std::vector<unsigned char> &frame, int width, int height, int rotation,
+                         int runs) {
+    double best = 0;
+    for (int i = 0; i < runs; i++) {
+        double start = nowMillis();
+        legacy::rotateYuv(frame.data(), width, height, (int) frame.size(), rotation);
+        double elapsed = nowMillis() - start;
+        if (i == 0 || elapsed < best) best = elapsed;
+    }
+    return best;
+}
+
+static double timeTiled(std::vector<unsigned char> &frame, int width, int height, int rotation,
+                        int runs) {
+    JniYuvOperator yuvOperator;
+    yuvOperator._storedYuvData = new unsigned char[frame.size()];
+    memcpy(yuvOperator._storedYuvData, frame.data(), frame.size());
+    yuvOperator._length = (int) frame.size();
+
+    double best = 0;
+    for (int i = 0; i < runs; i++) {
+        // rotateYuv() swaps the stored dimensions, start every run from the same frame size.
+        yuvOperator._width = width;
+        yuvOperator._height = height;
+
+        double start = nowMillis();
+        rotateYuv(&yuvOperator, rotation);
+        double elapsed = nowMillis() - start;
+        if (i == 0 || elapsed < best) best = elapsed;
+    }
+
+    delete[] yuvOperator._storedYuvData;
+    return best;
+}
+
+int main(int argc, char **argv) {
+    int runs = argc > 1 ? atoi(argv[1]) : 50;
+
+    static const int sizes[][2] = {
+            {640,  480},
+            {1280, 720},
+            {1920, 1080},
+            {4000, 3000},
+    };
+    static const int rotations[] = {90, 180, 270};
+
+    printf("%-11s %8s %12s %12s %8s\n", "frame", "rotation", "legacy ms", "tiled ms", "speedup");
+    for (size_t s = 0; s < sizeof(sizes) / sizeof(sizes[0]); s++) {
+        int width = sizes[s][0];
+        int height = sizes[s][1];
+        std::vector<unsigned char> frame((size_t) (width * height * 3 / 2));
+        for (size_t i = 0; i < frame.size(); i++) {
+            frame[i] = (unsigned char) (i * 131);
+        }
+
+        for (size_t r = 0; r < sizeof(rotations) / sizeof(rotations[0]); r++) {
+            double legacyMillis = timeLegacy(frame, width, height, rotations[r], runs);
+            double tiledMillis = timeTiled(frame, width, height, rotations[r], runs);
+            printf("%5dx%-5d %8d %12.3f %12.3f %7.2fx\n", width, height, rotations[r],
+                   legacyMillis, tiledMillis, legacyMillis / tiledMillis);
+        }
+    }
+    return 0;
+}
@@ -0,0 +1,6 @@
+#ifndef CAMERAKIT_HOST_ANDROID_BITMAP_H
+#define CAMERAKIT_HOST_ANDROID_BITMAP_H
+
+// Host stand-in for the NDK header. Nothing under test uses bitmaps, it only has to be found.
+
+#endif
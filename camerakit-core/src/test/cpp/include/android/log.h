@@ -0,0 +1,21 @@
+#ifndef CAMERAKIT_HOST_ANDROID_LOG_H
+#define CAMERAKIT_HOST_ANDROID_LOG_H
+
+// Host stand-in for the NDK header, see AndroidShims.cpp.
+
+#define ANDROID_LOG_DEBUG 3
+#define ANDROID_LOG_INFO 4
+#define ANDROID_LOG_WARN 5
+#define ANDROID_LOG_ERROR 6
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
@@ -0,0 +1,137 @@
+package com.wonderkiln.camerakit;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class RotationTest {
+
+    private static final int[][] SIZES = {
+            {2, 2},
+            {34, 66},
+            {176, 144},
+            // Not a multiple of the block size in either direction.
+            {330, 250},
+            {640, 480},
+            {1280, 720},
+    };
+
+    private static final int[] ROTATIONS = {90, 180, 270};
+
+    @Test
+    public void matchesLegacyRotation() {
+        for (int[] size : SIZES) {
+            for (int rotation : ROTATIONS) {
+                byte[] yuv = frame(size[0], size[1], 0);
+                byte[] expected = legacyRotation(yuv, size[0], size[1], rotation);
+                byte[] actual = new Rotation(yuv, size[0], size[1], rotation).getYuv();
+                assertArrayEquals(size[0] + "x" + size[1] + " at " + rotation, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void copiesPaddingPastChromaPlane() {
+        int width = 176;
+        int height = 144;
+        int chromaEnd = width * height * 3 / 2;
+
+        for (int rotation : ROTATIONS) {
+            byte[] yuv = frame(width, height, 100);
+            byte[] rotated = new Rotation(yuv, width, height, rotation).getYuv();
+
+            assertEquals(yuv.length, rotated.length);
+            assertArrayEquals(Arrays.copyOfRange(legacyRotation(yuv, width, height, rotation), 0, chromaEnd),
+                    Arrays.copyOfRange(rotated, 0, chromaEnd));
+            assertArrayEquals(Arrays.copyOfRange(yuv, chromaEnd, yuv.length),
+                    Arrays.copyOfRange(rotated, chromaEnd, rotated.length));
+        }
+    }
+
+    @Test
+    public void writesIntoOutputWhenLargeEnough() {
+        byte[] yuv = frame(330, 250, 0);
+        byte[] output = new byte[yuv.length];
+
+        for (int rotation : ROTATIONS) {
+            byte[] rotated = new Rotation(yuv, 330, 250, rotation, output).getYuv();
+            assertSame(output, rotated);
+            assertArrayEquals(legacyRotation(yuv, 330, 250, rotation), rotated);
+        }
+    }
+
+    @Test
+    public void ignoresOutputThatIsTooSmall() {
+        byte[] yuv = frame(176, 144, 0);
+        byte[] output = new byte[yuv.length - 1];
+
+        byte[] rotated = new Rotation(yuv, 176, 144, 90, output).getYuv();
+        assertNotSame(output, rotated);
+        assertArrayEquals(legacyRotation(yuv, 176, 144, 90), rotated);
+    }
+
+    @Test
+    public void zeroRotation() {
+        byte[] yuv = frame(34, 66, 0);
+        assertSame(yuv, new Rotation(yuv, 34, 66, 0).getYuv());
+
+        byte[] output = new byte[yuv.length];
+        assertSame(output, new Rotation(yuv, 34, 66, 0, output).getYuv());
+        assertArrayEquals(yuv, output);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnsupportedRotation() {
+        new Rotation(frame(2, 2, 0), 2, 2, 45);
+    }
+
+    private static byte[] frame(int width, int height, int padding) {
+        byte[] yuv = new byte[width * height * 3 / 2 + padding];
+        new Random(width * 31 + height).nextBytes(yuv);
+        return yuv;
+    }
+
+    /**
+     * The per-pixel rotation Rotation used before it was split into blocked plane loops. It
+     * leaves anything past the chroma plane zeroed.
+     */
+    private static byte[] legacyRotation(byte[] yuv, int width, int height, int rotation) {
+        final byte[] output = new byte[yuv.length];
+        final int frameSize = width * height;
+        final boolean swap = rotation % 180 != 0;
+        final boolean xflip = rotation % 270 != 0;
+        final boolean yflip = rotation >= 180;
+
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                final int yIn = j * width + i;
+                final int uIn = frameSize + (j >> 1) * width + (i & ~1);
+                final int vIn = uIn + 1;
+
+                final int wOut = swap ? height : width;
+                final int hOut = swap ? width : height;
+                final int iSwapped = swap ? j : i;
+                final int jSwapped = swap ? i : j;
+                final int iOut = xflip ? wOut - iSwapped - 1 : iSwapped;
+                final int jOut = yflip ? hOut - jSwapped - 1 : jSwapped;
+
+                final int yOut = jOut * wOut + iOut;
+                final int uOut = frameSize + (jOut >> 1) * wOut + (iOut & ~1);
+                final int vOut = uOut + 1;
+
+                output[yOut] = (byte) (0xff & yuv[yIn]);
+                output[uOut] = (byte) (0xff & yuv[uIn]);
+                output[vOut] = (byte) (0xff & yuv[vIn]);
+            }
+        }
+
+        return output;
+    }
+
+}